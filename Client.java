@@ -1,4 +1,8 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.IOException;
@@ -6,9 +10,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Client {
 
@@ -16,6 +29,619 @@ public class Client {
     private static final String BOOKSEAT = "bookSeat";
     private static final String SEARCH = "search";
     private static final String DELETE = "delete";
+    private static final String BATCH = "batch";
+    private static final String END = "end";
+    private static final String LOAD = "load";
+    private static final String STATS = "stats";
+    // First byte of a session, a connection that carries many commands
+    private static final int SESSION_MAGIC = 0xB7;
+
+    // What the client knows of one of the servers
+    private static class Host
+    {
+        InetSocketAddress address;
+        // Position in the input, the order to fall back on
+        int rank;
+        volatile boolean up = true;
+        // Moving average of the connect and probe round trips in ms, 0 until measured
+        volatile double latency = 0;
+        // Client commands the server was running at the last probe
+        volatile int load = 0;
+
+        public Host(InetSocketAddress address, int rank)
+        {
+            this.address = address;
+            this.rank = rank;
+        }
+
+        // Lower is better
+        public double score()
+        {
+            return (this.latency + 1) * (this.load + 1);
+        }
+
+        public void measured(long startNanos)
+        {
+            double ms = (System.nanoTime() - startNanos) / 1e6;
+            this.latency = this.latency == 0 ? ms : 0.8 * this.latency + 0.2 * ms;
+        }
+    }
+
+    // An open connection and the server at the other end
+    private static class Connection
+    {
+        Socket socket;
+        Host host;
+
+        public Connection(Socket socket, Host host)
+        {
+            this.socket = socket;
+            this.host = host;
+        }
+    }
+
+    // Picks the server for each command. The client sticks with the last server that answered while
+    // it's up and not much worse than the best one, otherwise it tries the servers that are up by
+    // latency and load, then the ones that are down. A background thread probes every server for
+    // its latency and load, which also finds out when a server that failed is back
+    private static class Router
+    {
+        private static final int CONNECT_TIMEOUT = 100;
+        private static final int PROBE_INTERVAL = 1000;
+        // How much worse than the best server the last one may get before the client moves
+        private static final double STICKINESS = 2;
+        List<Host> hosts = new ArrayList<>();
+        volatile Host lastGood;
+
+        public Router(List<InetSocketAddress> addresses)
+        {
+            for (InetSocketAddress address : addresses)
+            {
+                this.hosts.add(new Host(address, this.hosts.size()));
+            }
+            // With a single server there's nothing to choose
+            if (this.hosts.size() > 1)
+            {
+                Thread prober = new Thread(this::probe, "probe");
+                prober.setDaemon(true);
+                prober.start();
+            }
+        }
+
+        // The servers in the order to try them
+        public List<Host> order()
+        {
+            List<Host> order = new ArrayList<>(this.hosts);
+            // Servers that are up first, each half with the measured servers by score then the ones
+            // not measured yet in their order from the input. The prober updates the hosts while
+            // sorting, so read each once
+            Map<Host,Integer> groups = new HashMap<>();
+            Map<Host,Double> keys = new HashMap<>();
+            for (Host host : order)
+            {
+                boolean measured = host.latency != 0;
+                groups.put(host, (host.up ? 0 : 2) + (measured ? 0 : 1));
+                keys.put(host, measured ? host.score() : host.rank);
+            }
+            order.sort((a, b) -> {
+                int comparison = Integer.compare(groups.get(a), groups.get(b));
+                if (comparison == 0)
+                {
+                    comparison = Double.compare(keys.get(a), keys.get(b));
+                }
+                return comparison;
+            });
+            Host last = this.lastGood;
+            if (last != null && last.up && order.get(0) != last
+                    && (last.latency == 0 || order.get(0).latency == 0 || last.score() <= STICKINESS * order.get(0).score()))
+            {
+                order.remove(last);
+                order.add(0, last);
+            }
+            return order;
+        }
+
+        // Connect to the best server that answers
+        public Connection connect() throws IOException
+        {
+            for (Host host : order())
+            {
+                Socket s = new Socket();
+                long start = System.nanoTime();
+                try {
+                    s.connect(host.address, CONNECT_TIMEOUT);
+                } catch (IOException e) {
+                    s.close();
+                    failed(host);
+                    continue;
+                }
+                host.measured(start);
+                host.up = true;
+                return new Connection(s, host);
+            }
+            throw new IOException("No available host.");
+        }
+
+        // The server answered the command
+        public void succeeded(Host host)
+        {
+            this.lastGood = host;
+        }
+
+        // A server didn't answer, the probes let it back in once it does
+        public void failed(Host host)
+        {
+            host.up = false;
+            if (this.lastGood == host)
+            {
+                this.lastGood = null;
+            }
+        }
+
+        private void probe()
+        {
+            while (true)
+            {
+                for (Host host : this.hosts)
+                {
+                    probe(host);
+                }
+                try
+                {
+                    Thread.sleep(PROBE_INTERVAL);
+                }catch(InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        // Ask the server for its load, timing the round trip
+        private void probe(Host host)
+        {
+            long start = System.nanoTime();
+            try (Socket s = new Socket())
+            {
+                s.connect(host.address, CONNECT_TIMEOUT);
+                s.setSoTimeout(PROBE_INTERVAL);
+                PrintWriter outputWriter = new PrintWriter(s.getOutputStream(), true);
+                BufferedReader inputReader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                outputWriter.println(LOAD);
+                String load = inputReader.readLine();
+                host.measured(start);
+                try {
+                    host.load = load == null ? 0 : Integer.parseInt(load.trim());
+                } catch (NumberFormatException e) {
+                    host.load = 0;
+                }
+                host.up = true;
+            }catch(IOException e)
+            {
+                failed(host);
+            }
+        }
+    }
+
+    // A connection to one of the servers that stays open for all the commands. Commands and replies
+    // are framed by their length and up to pipeline commands are sent before waiting for a reply
+    private static class Session
+    {
+        Router router;
+        int pipeline;
+        Socket socket;
+        Host host;
+        DataOutputStream output;
+        DataInputStream input;
+        // Commands sent that haven't been replied to yet
+        Queue<String> pending = new ArrayDeque<>();
+
+        public Session(Router router, int pipeline)
+        {
+            this.router = router;
+            this.pipeline = Math.max(1, pipeline);
+        }
+
+        // Connect to the best host that answers
+        private void connect() throws IOException
+        {
+            Connection connection = this.router.connect();
+            Socket s = connection.socket;
+            this.socket = s;
+            this.host = connection.host;
+            this.output = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            this.input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            this.output.write(SESSION_MAGIC);
+        }
+
+        public void send(String command)
+        {
+            try
+            {
+                if (this.socket == null)
+                {
+                    connect();
+                }
+                byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+                this.output.writeInt(bytes.length);
+                this.output.write(bytes);
+                this.pending.add(command);
+                if (this.pending.size() >= this.pipeline)
+                {
+                    this.output.flush();
+                    readReply();
+                }
+            }catch(IOException e)
+            {
+                fail(e);
+            }
+        }
+
+        // Wait for the replies to every command sent
+        public void finish()
+        {
+            try
+            {
+                if (this.socket != null)
+                {
+                    this.output.flush();
+                }
+                while (this.pending.isEmpty() == false)
+                {
+                    readReply();
+                }
+            }catch(IOException e)
+            {
+                fail(e);
+            }
+            close();
+        }
+
+        private void readReply() throws IOException
+        {
+            byte[] reply = new byte[this.input.readInt()];
+            this.input.readFully(reply);
+            this.pending.poll();
+            this.router.succeeded(this.host);
+            if (reply.length > 0)
+            {
+                System.out.println(new String(reply, StandardCharsets.UTF_8));
+            }
+        }
+
+        // The connection broke. The commands waiting on a reply may or may not have run, so report
+        // them rather than sending them again. The next command connects again
+        private void fail(IOException e)
+        {
+            if (this.socket == null)
+            {
+                System.err.println(e.getMessage());
+                System.exit(-1);
+            }
+            for (String command : this.pending)
+            {
+                System.err.println("Unable to send order: " + command);
+            }
+            this.pending.clear();
+            this.router.failed(this.host);
+            close();
+        }
+
+        private void close()
+        {
+            if (this.socket != null)
+            {
+                try
+                {
+                    this.socket.close();
+                }catch(Exception e)
+                {
+                    System.err.println("Unable to close socket");
+                    e.printStackTrace();
+                }
+                this.socket = null;
+            }
+        }
+    }
+
+    // Latencies in microseconds, counted in buckets about 3% wide so recording is an array increment.
+    // Values below 64 get a bucket each, above that every power of two is split into 32 buckets
+    private static class Histogram
+    {
+        private static final int SUB_BUCKETS = 32;
+        long[] counts = new long[64 + 58 * SUB_BUCKETS];
+        long total = 0;
+        long max = 0;
+
+        private static int bucket(long value)
+        {
+            if (value < 64)
+            {
+                return (int) Math.max(0, value);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+            return 64 + (exponent - 6) * SUB_BUCKETS + sub;
+        }
+
+        // The highest value that falls in the bucket
+        private static long highest(int bucket)
+        {
+            if (bucket < 64)
+            {
+                return bucket;
+            }
+            int exponent = (bucket - 64) / SUB_BUCKETS + 6;
+            long sub = (bucket - 64) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << (exponent - 5)) - 1;
+        }
+
+        public void record(long value)
+        {
+            this.counts[bucket(value)]++;
+            this.total++;
+            this.max = Math.max(this.max, value);
+        }
+
+        public void add(Histogram other)
+        {
+            for (int i = 0; i < this.counts.length; i++)
+            {
+                this.counts[i] += other.counts[i];
+            }
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        public long percentile(double p)
+        {
+            long rank = (long) Math.ceil(p / 100 * this.total);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++)
+            {
+                seen += this.counts[i];
+                if (seen >= rank && seen > 0)
+                {
+                    return Math.min(highest(i), this.max);
+                }
+            }
+            return this.max;
+        }
+    }
+
+    // Runs sessions to the servers that send a random mix of commands for a while and reports the
+    // throughput and latency. Closed loop each session sends its next command once the last one
+    // is answered. Open loop the sessions send rate commands a second between them, on schedule,
+    // and a command's latency counts from when it was due so a slow server can't hide its queue
+    private static class LoadGenerator
+    {
+        Router router;
+        int sessions = 8;
+        long durationMs = 10000;
+        // Commands a second over all the sessions, 0 for closed loop
+        double rate = 0;
+        int numNames = 10000;
+        int numSeats = 100;
+        // Weights of reserve, bookSeat, search and delete
+        String[] ops = {RESERVE, BOOKSEAT, SEARCH, DELETE};
+        int[] weights = {40, 10, 40, 10};
+        // Cumulative probabilities of the names with a Zipf distribution, null for uniform
+        double[] zipf;
+        AtomicLong errors = new AtomicLong(0);
+
+        public LoadGenerator(Router router, Map<String,String> options)
+        {
+            this.router = router;
+            try {
+                this.sessions = Integer.parseInt(options.getOrDefault("sessions", "8"));
+                this.durationMs = (long) (Double.parseDouble(options.getOrDefault("duration", "10")) * 1000);
+                this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+                this.numNames = Integer.parseInt(options.getOrDefault("names", "10000"));
+                this.numSeats = Integer.parseInt(options.getOrDefault("seats", "100"));
+                double skew = Double.parseDouble(options.getOrDefault("zipf", "0"));
+                if (skew > 0)
+                {
+                    this.zipf = zipf(this.numNames, skew);
+                }
+                if (options.containsKey("mix"))
+                {
+                    parseMix(options.get("mix"));
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: Invalid benchmark option " + e.getMessage());
+                System.exit(-1);
+            }
+        }
+
+        // "reserve:40,search:60" gives the weight of each command, the ones left out aren't sent
+        private void parseMix(String mix)
+        {
+            int[] weights = new int[this.ops.length];
+            for (String entry : mix.split(","))
+            {
+                String[] opWeight = entry.split(":");
+                int op = Arrays.asList(this.ops).indexOf(opWeight[0]);
+                if (op < 0 || opWeight.length != 2)
+                {
+                    System.err.println("ERROR: Invalid mix " + entry + ". Use <command>:<weight>,...");
+                    System.exit(-1);
+                }
+                weights[op] = Integer.parseInt(opWeight[1]);
+            }
+            this.weights = weights;
+        }
+
+        private static double[] zipf(int n, double skew)
+        {
+            double[] cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++)
+            {
+                sum += 1 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++)
+            {
+                cdf[i] /= sum;
+            }
+            return cdf;
+        }
+
+        private String nextCommand(Random random)
+        {
+            int name;
+            if (this.zipf == null)
+            {
+                name = random.nextInt(this.numNames);
+            }
+            else
+            {
+                name = Arrays.binarySearch(this.zipf, random.nextDouble());
+                name = Math.min(name < 0 ? -name - 1 : name, this.numNames - 1);
+            }
+            int totalWeight = 0;
+            for (int w : this.weights)
+            {
+                totalWeight += w;
+            }
+            int pick = random.nextInt(Math.max(1, totalWeight));
+            int op = 0;
+            while (op < this.weights.length - 1 && pick >= this.weights[op])
+            {
+                pick -= this.weights[op];
+                op++;
+            }
+            String cmd = this.ops[op] + " user" + name;
+            if (BOOKSEAT.equals(this.ops[op]))
+            {
+                cmd += " " + (random.nextInt(this.numSeats) + 1);
+            }
+            return cmd;
+        }
+
+        public void run()
+        {
+            Histogram[] histograms = new Histogram[this.sessions];
+            Thread[] threads = new Thread[this.sessions];
+            long start = System.nanoTime();
+            long end = start + this.durationMs * 1000000;
+            for (int i = 0; i < this.sessions; i++)
+            {
+                Histogram histogram = new Histogram();
+                histograms[i] = histogram;
+                long offset = i;
+                threads[i] = new Thread(() -> runSession(histogram, start, end, offset), "session-" + i);
+                threads[i].start();
+            }
+            Histogram all = new Histogram();
+            for (int i = 0; i < this.sessions; i++)
+            {
+                try
+                {
+                    threads[i].join();
+                }catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                all.add(histograms[i]);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("sessions=%d %s ops=%d errors=%d time=%.1fs throughput=%.0f ops/s",
+                    this.sessions, this.rate > 0 ? "rate=" + (long) this.rate : "closed-loop",
+                    all.total, this.errors.get(), seconds, all.total / seconds));
+            System.out.println(String.format("latency us: p50=%d p99=%d p999=%d max=%d",
+                    all.percentile(50), all.percentile(99), all.percentile(99.9), all.max));
+        }
+
+        // One connection sending commands one at a time until the end
+        private void runSession(Histogram histogram, long start, long end, long offset)
+        {
+            Random random = new Random(System.nanoTime() ^ (offset * 0x9E3779B97F4A7C15L));
+            // Open loop the sessions take turns, each sending every sessions / rate seconds
+            long interval = this.rate > 0 ? (long) (1e9 * this.sessions / this.rate) : 0;
+            long due = start + (interval * offset) / this.sessions;
+            Socket socket = null;
+            Host host = null;
+            DataOutputStream output = null;
+            DataInputStream input = null;
+            while (true)
+            {
+                long now = System.nanoTime();
+                if (interval > 0)
+                {
+                    if (due >= end)
+                    {
+                        break;
+                    }
+                    if (due > now)
+                    {
+                        LockSupport.parkNanos(due - now);
+                    }
+                }
+                else
+                {
+                    due = now;
+                }
+                if (due >= end)
+                {
+                    break;
+                }
+                try
+                {
+                    if (socket == null)
+                    {
+                        Connection connection = this.router.connect();
+                        socket = connection.socket;
+                        host = connection.host;
+                        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        output.write(SESSION_MAGIC);
+                    }
+                    byte[] bytes = nextCommand(random).getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                    output.flush();
+                    input.readFully(new byte[input.readInt()]);
+                    histogram.record((System.nanoTime() - due) / 1000);
+                }catch(IOException e)
+                {
+                    this.errors.incrementAndGet();
+                    // Nothing to blame when no server could be reached, connect marked them all down
+                    if (host != null)
+                    {
+                        this.router.failed(host);
+                    }
+                    try
+                    {
+                        if (socket != null)
+                        {
+                            socket.close();
+                        }
+                    }catch(IOException closeError)
+                    {
+                        System.err.println("Unable to close socket");
+                    }
+                    socket = null;
+                    host = null;
+                    if (interval == 0)
+                    {
+                        // Don't spin on servers that are all down
+                        LockSupport.parkNanos(100000000);
+                    }
+                }
+                due += interval;
+            }
+            if (socket != null)
+            {
+                try
+                {
+                    socket.close();
+                }catch(IOException e)
+                {
+                    System.err.println("Unable to close socket");
+                }
+            }
+        }
+    }
 
     private static String getReserveCmd(String[] tokens)
     {
@@ -79,33 +705,72 @@ public class Client {
         return cmd;
     }
 
-    private static void sendCmdOverTcp(String command, List<InetSocketAddress> hosts)
+    // The command to send to the server for a line of input, null if it's not valid
+    private static String getCmd(String[] tokens)
+    {
+        String command = null;
+        if(RESERVE.equals(tokens[0]))
+        {
+            command = getReserveCmd(tokens);
+        } else if (BOOKSEAT.equals(tokens[0]))
+        {
+            command = getBookSeatCmd(tokens);
+        } else if (SEARCH.equals(tokens[0]))
+        {
+            command = getSearchCmd(tokens);
+        } else if (DELETE.equals(tokens[0]))
+        {
+            command = getDeleteCmd(tokens);
+        } else if (STATS.equals(tokens[0]))
+        {
+            command = STATS;
+        } else {
+            System.err.println("Invalid command: " + tokens[0]);
+        }
+        return command;
+    }
+
+    // Read the commands up to "end" into one batch the server runs together. Returns null if
+    // the batch has no valid commands
+    private static String getBatchCmd(Scanner sc)
+    {
+        StringBuilder cmd = new StringBuilder(BATCH);
+        int numCmds = 0;
+        while(sc.hasNextLine()) {
+            String[] tokens = sc.nextLine().trim().split("\\s+");
+            if (END.equals(tokens[0]))
+            {
+                break;
+            }
+            String command = getCmd(tokens);
+            if (command != null)
+            {
+                cmd.append(numCmds == 0 ? " " : ";").append(command);
+                numCmds++;
+            }
+        }
+        if (numCmds == 0)
+        {
+            return null;
+        }
+        return cmd.toString();
+    }
+
+    private static void sendCmdOverTcp(String command, Router router)
     {
-        int numHosts = hosts.size();
-        int numTries = 1;
-        boolean connect = false;
         // Send the purchase over TCP
         Socket tcpSocket = null;
+        Host host = null;
 
         try
         {
-            // Connect to the host, timeout 100ms
-            tcpSocket = new Socket();
-            while(connect == false) {
-                // TODO: Fix impl of host switching; only first host connects
-                try {
-                    tcpSocket.connect(hosts.get(numTries - 1), 100);
-                    connect = true;
-                } catch (IOException e) {
-                    if (numTries < numHosts) {
-                        numTries++;
-                        // Reopen socket
-                        tcpSocket = new Socket();
-                    } else {
-                        System.err.println("No available host.");
-                        System.exit(-1);
-                    }
-                }
+            try {
+                Connection connection = router.connect();
+                tcpSocket = connection.socket;
+                host = connection.host;
+            } catch (IOException e) {
+                System.err.println("No available host.");
+                System.exit(-1);
             }
 
             PrintWriter outputWriter = new PrintWriter(tcpSocket.getOutputStream(), true);
@@ -127,9 +792,11 @@ public class Client {
                 // Print the response
                 System.out.println(response);
             }
+            router.succeeded(host);
 
         }catch(Exception e)
         {
+            router.failed(host);
             System.err.println("Unable to send order");
             e.printStackTrace();
         }finally
@@ -151,6 +818,36 @@ public class Client {
 
     public static void main (String[] args)
     {
+        // With "session" all the commands go over one connection, "pipeline=<k>" sends up to k
+        // commands before waiting for their replies
+        boolean useSession = false;
+        int pipeline = 1;
+        // With "bench" the client ignores the commands and runs the load generator
+        boolean bench = false;
+        Map<String,String> benchOptions = new HashMap<>();
+        List<String> benchKeys = Arrays.asList("sessions", "duration", "rate", "mix", "names", "zipf", "seats");
+        for (String arg : args)
+        {
+            if ("session".equals(arg))
+            {
+                useSession = true;
+            } else if ("bench".equals(arg)) {
+                bench = true;
+            } else if (arg.indexOf('=') > 0 && benchKeys.contains(arg.substring(0, arg.indexOf('=')))) {
+                benchOptions.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("pipeline=")) {
+                try {
+                    pipeline = Integer.parseInt(arg.substring("pipeline=".length()));
+                    useSession = true;
+                } catch (NumberFormatException e) {
+                    System.err.println("ERROR: Invalid pipeline depth " + arg);
+                    System.exit(-1);
+                }
+            } else {
+                System.err.println("ERROR: Invalid argument " + arg + ". Usage: Client [session] [pipeline=<k>] [bench [sessions=<k>] [duration=<s>] [rate=<ops/s>] [mix=<command>:<weight>,...] [names=<n>] [zipf=<s>] [seats=<n>]]");
+                System.exit(-1);
+            }
+        }
         List<InetSocketAddress> hosts = new ArrayList<InetSocketAddress>();
         int numHosts = 0;
         int numLines = 0;
@@ -191,33 +888,38 @@ public class Client {
             numLines++;
         }
 
+        Router router = new Router(hosts);
+        if (bench)
+        {
+            new LoadGenerator(router, benchOptions).run();
+            return;
+        }
+        Session session = useSession ? new Session(router, pipeline) : null;
         while(sc.hasNextLine()) {
             String cmd = sc.nextLine();
             String[] tokens = cmd.split("\\s+");
 
             // Send a command to the server
-            String command = null;
-            if(RESERVE.equals(tokens[0]))
-            {
-                command = getReserveCmd(tokens);
-            } else if (BOOKSEAT.equals(tokens[0]))
-            {
-                command = getBookSeatCmd(tokens);
-            } else if (SEARCH.equals(tokens[0]))
-            {
-                command = getSearchCmd(tokens);
-            } else if (DELETE.equals(tokens[0]))
+            String command;
+            if (BATCH.equals(tokens[0]))
             {
-                command = getDeleteCmd(tokens);
+                command = getBatchCmd(sc);
             } else {
-                System.err.println("Invalid command: " + tokens[0]);
+                command = getCmd(tokens);
             }
             // Send the command if it's not null
-            if (command != null)
+            if (command != null && session != null)
+            {
+                session.send(command);
+            } else if (command != null)
             {
-                sendCmdOverTcp(command,hosts);
+                sendCmdOverTcp(command,router);
             }
 
         }
+        if (session != null)
+        {
+            session.finish();
+        }
     }
 }
@@ -3,25 +3,79 @@ import java.net.Socket;
 import java.security.InvalidParameterException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 
 import java.util.Queue;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.PriorityQueue;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.ArrayDeque;
+import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 
 public class Server
@@ -30,19 +84,52 @@ public class Server
     private static final String BOOK_SEAT = "bookSeat";
     private static final String SEARCH = "search";
     private static final String DELETE = "delete";
+    private static final String BATCH = "batch";
+    // Separates the operations of a batch
+    private static final String BATCH_SEPARATOR = ";";
     private static final String UPDATE = "update";
     private static final String REQUEST = "request";
     private static final String RELEASE = "release";
     private static final String ACKNOWLEDGE= "acknowledge";
     private static final String HANDSHAKE = "handshake";
+    private static final String DELTA = "delta";
+    private static final String RESYNC = "resync";
+    private static final String BINARY = "binary";
+    private static final String CHANNEL = "channel";
+    private static final String VERSION = "version";
+    private static final String READS = "reads";
+    private static final String ESCROW = "escrow";
+    private static final String DIGEST = "digest";
+    // Reply to a Ricart-Agrawala request that gets acknowledged once the peer leaves the CS
+    private static final String DEFERRED = "deferred";
+    // Asks how busy the server is, clients use it to pick a server
+    private static final String LOAD = "load";
+    // Asks for the counters and latencies of the server
+    private static final String STATS = "stats";
     private static int serverId = -1;
     private static String ipAddress;
     private static int port;
     private static AtomicInteger logicalClock;
-    // The queue of requests to enter critical section
-    private static RequestQueue requestQueue;
-    private static AtomicBoolean waitToEnterFlag;
+    // The partitions of the seats and the queues of requests to enter their critical sections
+    private static SeatPartitions partitions;
+    // Log of the seat changes on disk, null unless started with a dataDir
+    private static SeatLog seatLog;
+    // Creates virtual threads when running with threads=virtual, null for platform threads
+    private static ThreadFactory virtualThreads;
     private static AtomicInteger dataVersion;
+    // The client commands this server is running or waiting to run
+    private static AtomicInteger runningCommands = new AtomicInteger(0);
+    // Where the time of the client commands goes: the whole command, waiting to enter the CS,
+    // running the operations and sending the changes to the peers
+    private static LatencyStats commandLatency = new LatencyStats();
+    private static LatencyStats csWaitLatency = new LatencyStats();
+    private static LatencyStats operationLatency = new LatencyStats();
+    private static LatencyStats updatePeersLatency = new LatencyStats();
+    // Connections accepted from clients and peers, and the ones still open
+    private static AtomicLong acceptedConnections = new AtomicLong(0);
+    private static AtomicInteger openConnections = new AtomicInteger(0);
+    // Optional <key>=<value> settings from the end of the first line of the server input
+    private static Map<String,String> options = new HashMap<>();
 
   private static Peer parsePeer(String line)
   {
@@ -59,6 +146,107 @@ public class Server
     return p;
   }
 
+  private static void parseOption(String token)
+  {
+      String[] keyValue = token.split("=");
+      if(keyValue.length != 2)
+      {
+          System.err.println("Invalid option " + token + " in server file. Options are in the format <key>=<value>");
+          System.exit(-1);
+      }
+      options.put(keyValue[0], keyValue[1]);
+  }
+
+  private static String getOption(String key, String defaultValue)
+  {
+      String value = options.get(key);
+      return value != null ? value : defaultValue;
+  }
+
+  private static int getIntOption(String key, int defaultValue)
+  {
+      String value = options.get(key);
+      if(value == null)
+      {
+          return defaultValue;
+      }
+      try
+      {
+          return Integer.parseInt(value);
+      }catch(NumberFormatException e)
+      {
+          System.err.println("Invalid value " + value + " for option " + key);
+          System.exit(-1);
+      }
+      return defaultValue;
+  }
+
+  // Pick the threads for work that blocks. Virtual threads are looked up by reflection so the
+  // server still builds and runs on a JDK without them
+  private static void initThreads()
+  {
+      String threads = getOption("threads", "platform");
+      if("virtual".equals(threads) == false)
+      {
+          return;
+      }
+      try
+      {
+          Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+          virtualThreads = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+      }catch(Exception e)
+      {
+          System.err.println("Virtual threads aren't supported by this JVM, using platform threads");
+      }
+  }
+
+  // A thread for work that spends most of its time blocked, not started yet. Virtual threads are
+  // always daemon threads, so a thread that keeps the server running stays a platform thread
+  private static Thread newWorkerThread(Runnable r, String name, boolean daemon)
+  {
+      Thread t;
+      if(virtualThreads != null && daemon)
+      {
+          t = virtualThreads.newThread(r);
+      }
+      else
+      {
+          t = new Thread(r);
+          t.setDaemon(daemon);
+      }
+      if(name != null)
+      {
+          t.setName(name);
+      }
+      return t;
+  }
+
+  // Start a thread for work that spends most of its time blocked
+  private static Thread startWorkerThread(Runnable r, String name, boolean daemon)
+  {
+      Thread t = newWorkerThread(r, name, daemon);
+      t.start();
+      return t;
+  }
+
+  // An executor that runs every task on a virtual thread, or the platform pool without virtual threads
+  private static ExecutorService newWorkerExecutor(Supplier<ExecutorService> platformPool)
+  {
+      if(virtualThreads == null)
+      {
+          return platformPool.get();
+      }
+      try
+      {
+          return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, virtualThreads);
+      }catch(Exception e)
+      {
+          System.err.println("Unable to create a virtual thread executor");
+          e.printStackTrace();
+          return platformPool.get();
+      }
+  }
+
   private static List<Seat> getSeats(int n)
   {
       List<Seat> seats = new ArrayList();
@@ -70,12 +258,22 @@ public class Server
       return seats;
   }
 
+  // Create an empty seat store of the kind selected by the store option
+  private static SeatStore newSeatStore(int n)
+  {
+      if("compact".equals(getOption("store", "object")))
+      {
+          return new CompactSeatStore(n);
+      }
+      return new ObjectSeatStore(getSeats(n));
+  }
+
   public static void main (String[] args) {
       /**
        * TODO: If the server goes down and comes back up, it need to get updates from the other servers
        */
     List<Peer> serverList = new ArrayList();
-    List<Seat> seats = new ArrayList();
+    SeatStore seats = null;
     Scanner sc = new Scanner(System.in);
     int numLines = 0;
     int numServers = 0;
@@ -83,7 +281,6 @@ public class Server
     Peer self = null;
     logicalClock = new AtomicInteger(0);
     dataVersion = new AtomicInteger(0);
-    waitToEnterFlag = new AtomicBoolean(false);
 
     while(true)
     {
@@ -97,7 +294,7 @@ public class Server
       {
         String[] tokens = cmd.split("\\s+");
         // parse the first line
-        if(tokens == null || tokens.length != 3)
+        if(tokens == null || tokens.length < 3)
         {
             System.err.println("Invalid line in server file");
             System.exit(-1);
@@ -105,10 +302,15 @@ public class Server
         serverId = Integer.parseInt(tokens[0]);
         numServers = Integer.parseInt(tokens[1]);
         numSeats = Integer.parseInt(tokens[2]);
+        for (int i = 3; i < tokens.length; i++)
+        {
+            parseOption(tokens[i]);
+        }
       }
       else
       {
         Peer p = parsePeer(cmd);
+        p.id = numLines;
         serverList.add(p);
         if(numLines == serverId)
         {
@@ -118,22 +320,107 @@ public class Server
       }
       numLines++;
     }
+    initThreads();
     // get the tcp port for this
-    seats = getSeats(numSeats);
+    seats = newSeatStore(numSeats);
     ipAddress = self.ipAddress;
     port = self.port;
-    requestQueue = new RequestQueue(numServers);
+    boolean useRicartAgrawala = "ricart-agrawala".equals(getOption("mutex", "lamport"));
+    partitions = new SeatPartitions(getIntOption("partitions", 1), numSeats, numServers, useRicartAgrawala);
+    String dataDir = getOption("dataDir", null);
+    if(dataDir != null)
+    {
+        // Start from the seats we had before a restart, the peers only send what changed since
+        seatLog = new SeatLog(dataDir, serverId, numSeats, partitions.count);
+        try
+        {
+            seatLog.recover();
+        }catch(IOException | RuntimeException e)
+        {
+            System.err.println("Unable to read the seat log in " + dataDir);
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        for (int seatNum = 1; seatNum <= numSeats; seatNum++)
+        {
+            String name = seatLog.seats.getBookedBy(seatNum);
+            if(name != null)
+            {
+                seats.book(seatNum, name);
+            }
+        }
+        dataVersion.set(seatLog.version);
+        if(partitions.count > 1)
+        {
+            for (int p = 0; p < partitions.count; p++)
+            {
+                partitions.versions.set(p, seatLog.versions[p]);
+            }
+        }
+        startWorkerThread(seatLog, "seat-log", true);
+    }
 
 
     // Parse messages from clients
-    ServerThread tcpServer = new TcpServerThread(self.port,seats,serverList);
-    new Thread(tcpServer).start();
+    ServerThread tcpServer;
+    if("threads".equals(getOption("frontend", "nio")))
+    {
+        // A thread for every connection
+        tcpServer = new TcpServerThread(self.port,seats,serverList);
+    }
+    else
+    {
+        tcpServer = new NioServerThread(self.port,seats,serverList);
+    }
+    // The only thread that isn't a daemon, it keeps the server running
+    startWorkerThread(tcpServer, "tcp-server", false);
+  }
+
+  // Append a record to the seat log if the server keeps one. The future completes once it's on disk
+  private static CompletableFuture<Void> logSeats(LogRecord r)
+  {
+      if(seatLog == null)
+      {
+          return CompletableFuture.completedFuture(null);
+      }
+      return seatLog.append(r).written;
+  }
+
+  // Open a socket to a peer, giving up after connectTimeout ms rather than the OS timeout
+  private static Socket connect(String host, int port) throws IOException
+  {
+      Socket s = new Socket();
+      s.connect(new InetSocketAddress(host, port), getIntOption("connectTimeout", 1000));
+      return s;
+  }
+
+  // Whether to offer the binary wire format to peers during the handshake
+  private static boolean useBinaryCodec()
+  {
+      return BINARY.equals(getOption("codec", BINARY));
   }
 
   private static class Peer
   {
+      int id;
       String ipAddress;
       int port = -1;
+      // Set once the peer said in the handshake that it reads binary messages
+      volatile boolean binary = false;
+      // Set once the peer said in the handshake that it keeps connections open for many messages
+      volatile boolean channel = false;
+      // Set once the peer said in the handshake that it answers version queries for local reads
+      volatile boolean reads = false;
+      PeerConnection connection = new PeerConnection(this);
+      // When the peer last answered a message
+      volatile long lastHeard = System.currentTimeMillis();
+      // Set while the failure detector takes the peer to be down
+      volatile boolean suspected = false;
+      AtomicBoolean heartbeating = new AtomicBoolean(false);
+      // Messages sent to the peer still waiting on a reply
+      Set<CompletableFuture<PeerMessage>> inFlight = ConcurrentHashMap.newKeySet();
+      // Time from sending a message to the peer to its reply
+      LatencyStats roundTrip = new LatencyStats();
 
       public Peer(String ipAddress, String port)
       {
@@ -165,6 +452,8 @@ public class Server
       private Lock lock = new ReentrantLock();
 
       private PriorityQueue<Request> requests;
+      // Timestamp of the last released request of each server
+      private Map<Integer,Integer> released = new HashMap<>();
       public RequestQueue(int numServers)
       {
         // Initialize a queue to maintain the requests from servers
@@ -174,31 +463,141 @@ public class Server
       public void checkForSelfRequest()
       {
           lock.lock();
-          // Check if our request queue is at the top of the queue
-          if(requests.peek() != null  && requests.peek().serverId == Server.serverId)
+          // Check if our request is at the top of the queue and every peer acknowledged it
+          Request top = requests.peek();
+          if(top != null && top.granted != null && top.acknowledged)
           {
+              // If it is, pop the queue and wake the worker that made it, only that one
               requests.poll();
-              // If it is, pop the queue and notify the threads they can enter the CS
-              synchronized(Server.waitToEnterFlag)
-              {
-                Server.waitToEnterFlag.notifyAll();
-              }
+              top.granted.complete(null);
           }
           lock.unlock();
       }
 
-      public void add(Request r)
+      // Every peer acknowledged our request, it can be granted once it's at the top of the queue
+      public void acknowledged(Request r)
       {
           lock.lock();
-          requests.add(r);
+          r.acknowledged = true;
           lock.unlock();
+          checkForSelfRequest();
       }
 
-      public synchronized void remove(Request r)
+      // Add a request unless we have it already or it was released. A peer's request can reach us
+      // both in its request message and in its acknowledgement of ours
+      public void add(Request r)
       {
           lock.lock();
-          requests.remove(r);
-          lock.unlock();
+          try
+          {
+              if(released.getOrDefault(r.serverId, -1) >= r.logicalTimestamp)
+              {
+                  return;
+              }
+              for(Request queued: requests)
+              {
+                  if(queued.serverId == r.serverId && queued.logicalTimestamp == r.logicalTimestamp)
+                  {
+                      return;
+                  }
+              }
+              requests.add(r);
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      // Remove the oldest request of the server, a server releases its requests in the order it made them
+      public void remove(Request r)
+      {
+          lock.lock();
+          try
+          {
+              Request oldest = null;
+              for(Request queued: requests)
+              {
+                  if(queued.serverId == r.serverId && (oldest == null || queued.logicalTimestamp < oldest.logicalTimestamp))
+                  {
+                      oldest = queued;
+                  }
+              }
+              if(oldest != null)
+              {
+                  // By identity, several requests of the server can be queued
+                  for(Iterator<Request> it = requests.iterator(); it.hasNext();)
+                  {
+                      if(it.next() == oldest)
+                      {
+                          it.remove();
+                          break;
+                      }
+                  }
+                  released.merge(oldest.serverId, oldest.logicalTimestamp, Math::max);
+              }
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      // Drop a suspected server's requests and ignore the ones still coming in until it's let back in
+      public void dropServer(int serverId)
+      {
+          lock.lock();
+          try
+          {
+              requests.removeIf(r -> r.serverId == serverId);
+              released.put(serverId, Integer.MAX_VALUE);
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      // Take the server's requests again. A server coming back up starts its clock over
+      public void admitServer(int serverId)
+      {
+          lock.lock();
+          try
+          {
+              released.remove(serverId);
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      // The request of this server still waiting for the CS, null if there is none
+      public Request pendingRequest()
+      {
+          lock.lock();
+          try
+          {
+              for(Request queued: requests)
+              {
+                  if(queued.granted != null)
+                  {
+                      return queued;
+                  }
+              }
+              return null;
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      public int size()
+      {
+          lock.lock();
+          try
+          {
+              return requests.size();
+          }finally
+          {
+              lock.unlock();
+          }
       }
 
       public Request peek()
@@ -220,881 +619,6305 @@ public class Server
       }
   }
 
-  private static class RequestComparator implements Comparator<Request>
+  // Ricart-Agrawala mutual exclusion. A server enters the CS once every peer replied to its request.
+  // A server that's in the CS, or asked for it first, answers that the reply is deferred and
+  // acknowledges the request in a message of its own once it leaves, so no thread waits on it.
+  // Entering takes a request and a reply per peer, plus an acknowledgement from each peer that
+  // deferred, and no releases
+  private static class RicartAgrawala
   {
-      
-      public int compare(Request req1, Request req2)
+      private Lock lock = new ReentrantLock();
+      private Condition acknowledged = lock.newCondition();
+      // Timestamp of our request while we ask for or hold the CS, -1 otherwise
+      private int requestTimestamp = -1;
+      // Peers' requests we hold back the reply to until we leave
+      private List<Request> deferred = new ArrayList<>();
+      // Acknowledgements of our request from peers that deferred their reply, by server id
+      private Map<Integer,PeerMessage> acks = new HashMap<>();
+
+      // Returns the timestamp to send with the request. One worker of this server at a time asks
+      public int startRequest()
       {
-          if(req1 == null)
+          lock.lock();
+          try
           {
-              if(req2 == null)
+              requestTimestamp = Server.logicalClock.incrementAndGet();
+              acks.clear();
+              return requestTimestamp;
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      // Returns the requests we held back, to acknowledge now
+      public List<Request> leave()
+      {
+          lock.lock();
+          try
+          {
+              requestTimestamp = -1;
+              acks.clear();
+              List<Request> replies = deferred;
+              deferred = new ArrayList<>();
+              return replies;
+          }finally
+          {
+              lock.unlock();
+          }
+      }
+
+      // Whether to hold back the reply to a peer's request, while we hold the CS or our own request
+      // is older. The request is queued to be acknowledged when we leave
+      public boolean deferReply(int timestamp, int serverId)
+      {
+          lock.lock();
+          try
+          {
+              // Our next request has to come after the peer's
+              Server.logicalClock.accumulateAndGet(timestamp, Math::max);
+              if(requestTimestamp >= 0 && (requestTimestamp < timestamp || (requestTimestamp == timestamp && Server.serverId < serverId)))
               {
-                  return 0;
+                  // The peer asks again when it didn't get our answer
+                  Request r = new Request(serverId, timestamp);
+                  if(deferred.contains(r) == false)
+                  {
+                      deferred.add(r);
+                  }
+                  return true;
               }
-              return -1;
+              return false;
+          }finally
+          {
+              lock.unlock();
           }
-          if(req2 == null)
+      }
+
+      // A peer that deferred its reply left the CS. It may get here before its answer to the request
+      public void acknowledge(PeerMessage ack)
+      {
+          lock.lock();
+          try
           {
-              return 1;
+              if(ack.timestamp == requestTimestamp)
+              {
+                  acks.put(ack.serverId, ack);
+                  acknowledged.signalAll();
+              }
+          }finally
+          {
+              lock.unlock();
           }
+      }
 
-          int comparison = Integer.compare(req1.logicalTimestamp,req2.logicalTimestamp);
-          if(comparison == 0)
+      // The acknowledgement of our request from a peer that deferred its reply, null until it comes
+      public PeerMessage ack(int serverId)
+      {
+          lock.lock();
+          try
           {
-              comparison = Integer.compare(req1.serverId, req2.serverId);
+              return acks.get(serverId);
+          }finally
+          {
+              lock.unlock();
           }
-          return comparison;
       }
 
+      // Wait for the next acknowledgement, at most timeoutMillis
+      public void awaitAck(long timeoutMillis) throws InterruptedException
+      {
+          lock.lock();
+          try
+          {
+              acknowledged.await(timeoutMillis, TimeUnit.MILLISECONDS);
+          }finally
+          {
+              lock.unlock();
+          }
+      }
   }
 
-  // Class to represent a request to enter the critical section
-  private static class Request
+  // The seats split in ranges of seat numbers that each have their own CS. A command enters the CS
+  // of the ranges holding the seats it changes and of the range its name hashes to, so commands on
+  // other seats and names can run at the same time on other servers. Partitions are entered in
+  // ascending order so two servers never wait on each other
+  private static class SeatPartitions
   {
-      int serverId;
-      int logicalTimestamp;
-
-      public Request(int serverId,int lc)
-      {
-          this.serverId = serverId;
-          this.logicalTimestamp = lc;
-      }
+      int count;
+      int numSeats;
+      // Seats in every partition but the last
+      int size;
+      RequestQueue[] queues;
+      // null when using the request queues
+      RicartAgrawala[] ricartAgrawala;
+      // Lets one worker of this server at a time ask for the CS of a partition
+      Lock[] entries;
+      // Number of changes made to the seats of each partition. Only kept with more than one
+      // partition, the total is dataVersion
+      AtomicIntegerArray versions;
+      int[] all;
 
-      @Override
-      public boolean equals(Object obj) 
+      public SeatPartitions(int count, int numSeats, int numServers, boolean useRicartAgrawala)
       {
-          if (obj == this) 
+          this.count = Math.max(1, Math.min(count, numSeats));
+          this.numSeats = numSeats;
+          this.size = (numSeats + this.count - 1) / this.count;
+          this.queues = new RequestQueue[this.count];
+          this.entries = new Lock[this.count];
+          this.all = new int[this.count];
+          if(useRicartAgrawala)
           {
-              return true;
+              this.ricartAgrawala = new RicartAgrawala[this.count];
           }
-          if (obj == null || obj.getClass() != this.getClass()) 
+          for(int p = 0; p < this.count; p++)
           {
-              return false;
+              this.queues[p] = new RequestQueue(numServers);
+              this.entries[p] = new ReentrantLock(true);
+              this.all[p] = p;
+              if(useRicartAgrawala)
+              {
+                  this.ricartAgrawala[p] = new RicartAgrawala();
+              }
           }
+          this.versions = new AtomicIntegerArray(this.count);
+      }
 
-          Request other = (Request) obj;
-          // Request are equal if they are made by the same server
-          return this.serverId == other.serverId;
+      public int ofSeat(int seatNum)
+      {
+          // Seats that don't exist go to the closest partition
+          return Math.max(0, Math.min(this.count - 1, (seatNum - 1) / this.size));
       }
 
-      @Override
-      public int hashCode()
+      public int ofName(String name)
       {
-          int prime = 31;
-          int result = 1;
-          result = prime * result + serverId;
-          return result;
+          return Math.floorMod(name.hashCode(), this.count);
       }
 
-  }
-
-  private static class Seat
-  {
-      int id;
-      boolean isBooked;
-      String bookedBy;
-      Lock lock = new ReentrantLock();
-
-
-      public Seat (int id)
+      public int first(int p)
       {
-          this.id = id;
-          this.isBooked = false;
-          this.bookedBy = null;
+          return p * this.size + 1;
       }
 
-      public boolean freeSeat()
+      public int last(int p)
       {
-          lock.lock();
-          // free the seat
-          this.isBooked = false;
-          this.bookedBy = null;
-          lock.unlock();
-          return true;
+          return Math.min(this.numSeats, (p + 1) * this.size);
       }
-      
-      public boolean isBooked()
+
+      // The partitions in ascending order without repeats
+      public int[] of(int... partitions)
       {
-          lock.lock();
-          boolean value = this.isBooked;
-          lock.unlock();
-          return value;
+          return Arrays.stream(partitions).distinct().sorted().toArray();
       }
 
-      public String getBookedBy()
+      // The version of each partition to send to the peers, null with a single partition
+      public int[] getVersions()
       {
+          if(this.count == 1)
+          {
+              return null;
+          }
+          int[] result = new int[this.count];
+          for(int p = 0; p < this.count; p++)
+          {
+              result[p] = this.versions.get(p);
+          }
+          return result;
+      }
 
-          lock.lock();
-          String value = this.bookedBy;
-          lock.unlock();
-          return value;
+      // Whether any of our partitions is ahead of a peer's versions. Always false with a single
+      // partition, where the data version says it all
+      public boolean hasNewerThan(int[] peerVersions)
+      {
+          if(this.count == 1)
+          {
+              return false;
+          }
+          if(peerVersions == null || peerVersions.length != this.count)
+          {
+              return true;
+          }
+          for(int p = 0; p < this.count; p++)
+          {
+              if(this.versions.get(p) > peerVersions[p])
+              {
+                  return true;
+              }
+          }
+          return false;
       }
 
-      public boolean book(String name)
+      // Whether a peer's versions are ahead of ours in any partition. Versions from a peer with
+      // other partitions can't be compared
+      public boolean isAhead(int[] peerVersions)
       {
-          lock.lock();
-          boolean isBooked = this.isBooked;
-          if(isBooked)
+          if(peerVersions == null || peerVersions.length != this.count)
           {
-              lock.unlock();
               return false;
           }
-          // book the seat
-          this.bookedBy = name;
-          this.isBooked = true;
-          // Release the lock after updating the quantity
-          lock.unlock();
-          return true;
+          for(int p = 0; p < this.count; p++)
+          {
+              if(peerVersions[p] > this.versions.get(p))
+              {
+                  return true;
+              }
+          }
+          return false;
       }
+  }
 
-      @Override
-      // To json String
-       public String toString() 
-       { 
-           String json = "{";
-           json += "\"id\":\""+ this.id + "\",";
-           json += "\"bookedBy\":\"" + (this.getBookedBy() != null? this.getBookedBy():null) + "\",";
-           json += "\"booked\":" + (this.isBooked() ? "true":"false") +"}";
-           return json;
+  // Escrow mode. Every seat is owned by one server and only its owner books or frees it, so a
+  // server hands out the free seats it owns without a CS and tells the peers about the change
+  // before answering. Every name is owned by a server too and its commands run there, so two
+  // servers never book the same name. A server running low on free seats asks the peer with the
+  // most for some of theirs. When the failure detector of the next server up after a server
+  // suspects it, that server takes over its seats and names, and gives them back once it answers
+  // again. Each of these changes of ownership counts up the server's epoch, the fencing token its
+  // changes are checked against
+  private static class SeatEscrow
+  {
+      // What a command run here returns when this server turns out to be taken over. It's run
+      // again, at the server that took over
+      static final String FENCED = "fenced";
 
-       } 
+      ServerThread serverThread;
+      int numServers;
+      // Server owning each seat, by seat number
+      int[] owners;
+      // Number of times each seat changed. A peer's copy of a seat is only taken if it changed more
+      int[] stamps;
+      // Servers that were taken over, by id
+      boolean[] down;
+      // Number of times each server was taken over or given its seats back. A message about a change
+      // of ownership older than the one we know is ignored
+      int[] epochs;
+      // The server that took over each server that is down, 0 for a server that is up
+      int[] takenBy;
+      // Free seats this server owns
+      TreeSet<Integer> pool = new TreeSet<>();
+      Lock lock = new ReentrantLock();
+      // Ask the peers for more seats once the pool is below this
+      int lowWater;
+      AtomicBoolean rebalancing = new AtomicBoolean(false);
+      // The failure detector's timeout, and how long to wait for a peer's reply. A peer may wait
+      // up to twice the timeout for the server taking over from it before it replies
+      long failureTimeout;
+      long askTimeout;
 
-       public static Seat fromString(String idStr, String bookedByStr, String bookedStr)
-       {
-           Seat s = null;
-           idStr = idStr.replace("{", "");
-           idStr = idStr.replace("}", "");
-           idStr = idStr.replace("\"", "");
-           idStr = idStr.replace(":", "");
-           idStr = idStr.replace("id", "");
-
-           bookedByStr= bookedByStr.replace("{", "");
-           bookedByStr= bookedByStr.replace("}", "");
-           bookedByStr= bookedByStr.replace("\"", "");
-           bookedByStr= bookedByStr.replace(":", "");
-           bookedByStr= bookedByStr.replace("bookedBy", "");
-
-           bookedStr= bookedStr.replace("{", "");
-           bookedStr= bookedStr.replace("}", "");
-           bookedStr= bookedStr.replace("\"", "");
-           bookedStr= bookedStr.replace(":", "");
-           bookedStr= bookedStr.replace("booked", "");
-
-
-           int idVal = Integer.parseInt(idStr);
-           boolean booked = Boolean.parseBoolean(bookedStr);
-           s = new Seat(idVal);
-           if(booked)
-           {
-            s.book(bookedByStr);
-           }
+      public SeatEscrow(ServerThread serverThread, int numSeats, int numServers)
+      {
+          this.serverThread = serverThread;
+          this.numServers = numServers;
+          this.owners = new int[numSeats + 1];
+          this.stamps = new int[numSeats + 1];
+          this.down = new boolean[numServers + 1];
+          this.epochs = new int[numServers + 1];
+          this.takenBy = new int[numServers + 1];
+          this.lowWater = Server.getIntOption("escrowLow", Math.max(1, numSeats / (numServers * 4)));
+          this.failureTimeout = Math.max(Server.getIntOption("heartbeat", 500), Server.getIntOption("failureTimeout", 3000));
+          this.askTimeout = serverThread.peerTimeout > 0 ? serverThread.peerTimeout : 3 * this.failureTimeout;
+          for(int seatNum = 1; seatNum <= numSeats; seatNum++)
+          {
+              this.owners[seatNum] = startingOwner(seatNum);
+              if(this.owners[seatNum] == Server.serverId && serverThread.getSeats().isBooked(seatNum) == false)
+              {
+                  this.pool.add(seatNum);
+              }
+          }
+      }
 
-           return s;
-       }
-  }
+      // Each server starts with an equal range of the seats
+      private int startingOwner(int seatNum)
+      {
+          return (int) ((long) (seatNum - 1) * this.numServers / (this.owners.length - 1)) + 1;
+      }
 
-  private static class MessagePeerThead implements Callable<String>
-  {
-      Peer p;
-      String msg;
-      public MessagePeerThead(Peer p, String msgToPeer)
+      // The server up after the given one, looking around from it
+      private int nextUp(int serverId)
       {
-          this.p = p;
-          this.msg = msgToPeer;
+          for(int i = 0; i < this.numServers; i++)
+          {
+              int id = (serverId - 1 + i) % this.numServers + 1;
+              if(this.down[id] == false)
+              {
+                  return id;
+              }
+          }
+          return Server.serverId;
       }
 
+      // The server that takes over from the given one, the next one up after it
+      private int successor(int serverId)
+      {
+          return nextUp(serverId % this.numServers + 1);
+      }
 
-      private String sendCmdOverTcp(String command, String hostAddress, int port)
+      public int ownerOfName(String name)
       {
-          // Send the command over TCP
-          Socket tcpSocket = null;
-          String response = "";
+          this.lock.lock();
           try
           {
-              // Get the socket
-              tcpSocket = new Socket(hostAddress, port);
-              PrintWriter outputWriter = new PrintWriter(tcpSocket.getOutputStream(), true);
-              BufferedReader inputReader = new BufferedReader(new InputStreamReader(tcpSocket.getInputStream()));
-              // Write the purchase message
-              outputWriter.write(command + "\n");
-              outputWriter.flush();
+              return nextUp(Math.floorMod(name.hashCode(), this.numServers) + 1);
+          }finally
+          {
+              this.lock.unlock();
+          }
+      }
 
-                                  
-              while(true)
+      // Run a client command from any server. Commands for a name owned by a peer are forwarded to it.
+      // The commands of a batch run one at a time at the owner of their name, not in one CS
+      public String run(String msg)
+      {
+          String[] tokens = msg.trim().split("\\s+");
+          if(BATCH.equals(tokens[0]) == false)
+          {
+              return run(tokens, 0);
+          }
+          StringBuilder results = new StringBuilder();
+          for (String op: msg.trim().substring(BATCH.length()).split(BATCH_SEPARATOR))
+          {
+              String[] opTokens = op.trim().split("\\s+");
+              if(opTokens[0].isEmpty())
               {
-                  String input = inputReader.readLine();
-                  if (input == null)
-                  {
-                      break;
-                  }
-                  response += input;
+                  continue;
+              }
+              String result = run(opTokens, 0);
+              if(result == null)
+              {
+                  result = "Invalid command: " + op.trim();
+              }
+              if(results.length() > 0)
+              {
+                  results.append('\n');
               }
+              results.append(result);
+          }
+          return results.toString();
+      }
 
-          }catch(Exception e)
+      // Run the command here if we own its name, else forward it. A server forwards a command at
+      // most once around the servers so different views of who is down can't bounce it forever
+      private String run(String[] tokens, int hops)
+      {
+          if(tokens.length < 2)
           {
               return null;
-          }finally
+          }
+          long deadline = System.currentTimeMillis() + 2 * this.failureTimeout;
+          while(true)
           {
-              if (tcpSocket != null)
+              int owner = ownerOfName(tokens[1]);
+              if(owner == Server.serverId)
               {
-                  try
-                  {
-                      tcpSocket.close();
-                  }catch(Exception e)
+                  String result = runLocal(tokens);
+                  if(FENCED.equals(result) == false)
                   {
-                      System.err.println("Unable to close socket");
-                      e.printStackTrace();
+                      return result;
                   }
+                  // We were taken over, the name is owned by another server now
+                  continue;
+              }
+              if(hops >= this.numServers)
+              {
+                  return "No server available for " + tokens[1];
+              }
+              String reply = ask(owner, "forward " + (hops + 1) + " " + String.join(" ", tokens));
+              if(reply != null)
+              {
+                  return reply;
+              }
+              // The owner can't be reached. Ask again until it answers or the server taking over
+              // from it tells us
+              if(System.currentTimeMillis() >= deadline || pause() == false)
+              {
+                  return "No server available for " + tokens[1];
               }
-
           }
-          return response;
       }
-  
-
-      public String call() throws InvalidParameterException
-      {  
-          String cmd = this.msg;
-          String hostAddress =  this.p.ipAddress;
-          int port = this.p.port;
-          // Send the command to the peer
-          String response = sendCmdOverTcp(cmd, hostAddress, port);
-          return response;
-      }  
-  }
 
-  private static abstract class ClientWorkerThread implements  Runnable
-  {
-      ServerThread serverThread;
-      Socket s;
-
-      public ClientWorkerThread(ServerThread thread,Socket s)
+      private String runLocal(String[] tokens)
       {
-          this.s = s;
-          this.serverThread = thread;
+          try
+          {
+              if(RESERVE.equals(tokens[0]))
+              {
+                  return reserve(tokens[1]);
+              }
+              else if(BOOK_SEAT.equals(tokens[0]) && tokens.length >= 3)
+              {
+                  return bookSeat(tokens[1], Integer.parseInt(tokens[2]));
+              }
+              else if(SEARCH.equals(tokens[0]))
+              {
+                  return search(tokens[1]);
+              }
+              else if(DELETE.equals(tokens[0]))
+              {
+                  return delete(tokens[1]);
+              }
+          }catch(NumberFormatException e)
+          {
+              return "Invalid seat number " + tokens[2];
+          }
+          return null;
       }
 
-
-      private String reserve(String[] tokens)
+      private String reserve(String name)
       {
-          if(tokens == null || tokens.length < 2 )
+          while(true)
           {
-              return null;
+              Integer seatNum;
+              String before = null;
+              String change = null;
+              this.lock.lock();
+              try
+              {
+                  if(this.down[Server.serverId])
+                  {
+                      return FENCED;
+                  }
+                  SeatStore seats = this.serverThread.getSeats();
+                  if(seats.findByName(name) >= 0)
+                  {
+                      return "Seat already booked against the name provided";
+                  }
+                  seatNum = this.pool.pollFirst();
+                  if(seatNum != null)
+                  {
+                      before = entry(seatNum);
+                      seats.book(seatNum, name);
+                      change = changed(seatNum);
+                  }
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              if(seatNum != null)
+              {
+                  if(publish(change, before, 0) == false)
+                  {
+                      return unpublished(name);
+                  }
+                  rebalanceIfLow();
+                  return "Seat assigned to you is " + seatNum;
+              }
+              // Out of seats, wait for a peer to give us some
+              if(acquire(this.lowWater, true) == 0)
+              {
+                  return "Sold out - No seat available";
+              }
           }
-          String name = tokens[1];
-          // Check for a reservation against this name
-          String search = search(tokens);
-          if(search != null)
+      }
+
+      private String bookSeat(String name, int seatNum)
+      {
+          SeatStore seats = this.serverThread.getSeats();
+          if(seatNum > seats.size() || seatNum < 1)
           {
-              return "Seat already booked against the name provided";
+              return seatNum + " does not exist";
           }
-          List<Seat> seats = this.serverThread.getSeats();
-          for (Seat s: seats)
+          for(int attempt = 0; attempt <= this.numServers; attempt++)
           {
-              if(s.isBooked() == false)
+              int owner;
+              String before = null;
+              String change = null;
+              this.lock.lock();
+              try
               {
-                  // Book the seat
-                  if(s.book(name))
+                  if(this.down[Server.serverId])
                   {
-                      // Upddate the version of the data since we made a modification
-                      dataVersion.getAndIncrement();
-                      return "Seat assigned to you is " + s.id;
+                      return FENCED;
                   }
+                  owner = this.owners[seatNum];
+                  if(owner == Server.serverId || seats.findByName(name) >= 0)
+                  {
+                      if(seats.isBooked(seatNum))
+                      {
+                          return "Seat " + seatNum + " is not available";
+                      }
+                      if(seats.findByName(name) >= 0)
+                      {
+                          return "Seat " + seatNum + " already booked against the name provided";
+                      }
+                      before = entry(seatNum);
+                      seats.book(seatNum, name);
+                      this.pool.remove(seatNum);
+                      change = changed(seatNum);
+                  }
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              if(change != null)
+              {
+                  return publish(change, before, 0) ? "Seat assigned to you is " + seatNum : unpublished(name);
+              }
+              // Only the owner of the seat can give it to us. Its reply has its copy of the seat,
+              // which we own now if it was free
+              String reply = ask(owner, "grant 1 " + seatNum);
+              if(reply != null)
+              {
+                  apply(reply);
               }
           }
-          return "Sold out - No seat available";
+          return "Seat " + seatNum + " is not available";
       }
 
-      private String bookSeat(String[] tokens)
+      private String search(String name)
       {
-          if(tokens == null || tokens.length < 3 )
+          this.lock.lock();
+          try
           {
-              return null;
+              if(this.down[Server.serverId])
+              {
+                  return FENCED;
+              }
+              int seatNum = this.serverThread.getSeats().findByName(name);
+              return seatNum >= 0 ? "" + seatNum : "No reservation found for " + name;
+          }finally
+          {
+              this.lock.unlock();
           }
-          String name = tokens[1];
-          int seatNum = Integer.parseInt(tokens[2]);
-          List<Seat> seats = this.serverThread.getSeats();
-          
-          if(seatNum > seats.size() || seatNum < 1)
+      }
+
+      private String delete(String name)
+      {
+          int seatNum;
+          String before;
+          String change;
+          this.lock.lock();
+          try
           {
-              return seatNum + " does not exist";
+              if(this.down[Server.serverId])
+              {
+                  return FENCED;
+              }
+              SeatStore seats = this.serverThread.getSeats();
+              seatNum = seats.findByName(name);
+              if(seatNum < 0)
+              {
+                  return "No reservation found for " + name;
+              }
+              before = entry(seatNum);
+              seats.free(name);
+              if(this.owners[seatNum] == Server.serverId)
+              {
+                  this.pool.add(seatNum);
+              }
+              change = changed(seatNum);
+          }finally
+          {
+              this.lock.unlock();
           }
-          
-          Seat s = seats.get(seatNum - 1);
-          if(s.isBooked() == false)
+          return publish(change, before, 0) ? "" + seatNum : unpublished(name);
+      }
+
+      // What a command answers when its changes were undone
+      private String unpublished(String name)
+      {
+          this.lock.lock();
+          try
+          {
+              return this.down[Server.serverId] ? FENCED : "No server available for " + name;
+          }finally
           {
-              String[] verify = {"search", name};
-              if(search(verify) != null)
+              this.lock.unlock();
+          }
+      }
+
+      // Count a change to a seat and describe it as seat:stamp:owner:name. The caller holds the lock
+      private String changed(int seatNum)
+      {
+          this.stamps[seatNum]++;
+          logSeat(seatNum);
+          return entry(seatNum);
+      }
+
+      // Log the seat's name. The peers have the change before it's answered for, nothing waits for the log
+      private void logSeat(int seatNum)
+      {
+          Server.logSeats(new LogRecord(LogRecord.ESCROW_RECORD, new int[] {seatNum}, new String[] {this.serverThread.getSeats().getBookedBy(seatNum)}));
+      }
+
+      private String entry(int seatNum)
+      {
+          String name = this.serverThread.getSeats().getBookedBy(seatNum);
+          return seatNum + ":" + this.stamps[seatNum] + ":" + this.owners[seatNum] + ":" + (name != null ? name : "");
+      }
+
+      // Take the seats a peer changed if they changed more than our copies
+      public void apply(String changes)
+      {
+          apply(changes, false);
+      }
+
+      // Take the given copies of seats. Copies from before our own change undo it, if the seat
+      // didn't change since
+      private void apply(String changes, boolean undo)
+      {
+          this.lock.lock();
+          try
+          {
+              SeatStore seats = this.serverThread.getSeats();
+              for(String change: changes.trim().split("\\s+"))
+              {
+                  String[] fields = change.split(":", 4);
+                  if(fields.length < 4)
+                  {
+                      continue;
+                  }
+                  int seatNum = Integer.parseInt(fields[0]);
+                  int stamp = Integer.parseInt(fields[1]);
+                  if(undo ? stamp + 1 != this.stamps[seatNum] : stamp <= this.stamps[seatNum])
+                  {
+                      continue;
+                  }
+                  String name = fields[3].isEmpty() ? null : fields[3];
+                  this.stamps[seatNum] = stamp;
+                  this.owners[seatNum] = Integer.parseInt(fields[2]);
+                  seats.set(seatNum, name);
+                  logSeat(seatNum);
+                  if(this.owners[seatNum] == Server.serverId && name == null && this.down[Server.serverId] == false)
+                  {
+                      this.pool.add(seatNum);
+                  }
+                  else
+                  {
+                      this.pool.remove(seatNum);
+                  }
+              }
+          }finally
+          {
+              this.lock.unlock();
+          }
+      }
+
+      // Tell the peers about our changed seats before answering for them. The server that would
+      // take over from us gets them first, and refuses them if it already did: then the changes
+      // are undone and our seats and names are left to it. Every other peer that is up then gets
+      // them, but one that gets them in a reply. Returns false if the changes were undone
+      private boolean publish(String changes, String before, int except)
+      {
+          long deadline = System.currentTimeMillis() + 2 * this.failureTimeout;
+          int successor;
+          while(true)
+          {
+              int epoch;
+              this.lock.lock();
+              try
+              {
+                  successor = successor(Server.serverId);
+                  epoch = this.epochs[Server.serverId];
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              if(successor == Server.serverId)
+              {
+                  // No one else is up
+                  break;
+              }
+              String reply = ask(successor, "confirm " + epoch + " " + changes);
+              if(reply != null && reply.startsWith(FENCED))
+              {
+                  String[] fields = reply.split("\\s+");
+                  if(fenced(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), before))
+                  {
+                      return false;
+                  }
+                  continue;
+              }
+              if(reply != null)
+              {
+                  break;
+              }
+              // Ask again until it answers or is taken over itself. Waiting on it for good would
+              // hold up the command, so past the deadline the changes are undone
+              if(System.currentTimeMillis() >= deadline || pause() == false)
+              {
+                  apply(before, true);
+                  return false;
+              }
+          }
+          tell("changes " + changes, except, successor);
+          return true;
+      }
+
+      // The server that would take over from us refused our changes, its epoch for us is newer.
+      // If it took over, undo the changes and leave our seats and names to it. Returns true then,
+      // false if we're still up and only missed our epoch
+      private boolean fenced(int epoch, int taker, String before)
+      {
+          this.lock.lock();
+          try
+          {
+              if(taker == 0)
+              {
+                  this.epochs[Server.serverId] = Math.max(this.epochs[Server.serverId], epoch);
+                  return false;
+              }
+              apply(before, true);
+              takeDown(Server.serverId, epoch, taker);
+              return true;
+          }finally
+          {
+              this.lock.unlock();
+          }
+      }
+
+      // Send an escrow message to every peer that is up but the given ones, asking again until each
+      // answered, was taken over or is suspected
+      private void tell(String text, int... except)
+      {
+          List<Peer> peers = new ArrayList<>();
+          for(Peer p: this.serverThread.messenger.otherPeers())
+          {
+              if(Arrays.stream(except).noneMatch(id -> id == p.id))
+              {
+                  peers.add(p);
+              }
+          }
+          PeerMessage msg = PeerMessage.escrow(Server.serverId, text);
+          boolean retry = false;
+          try
+          {
+              while(true)
+              {
+                  this.lock.lock();
+                  try
+                  {
+                      peers.removeIf(p -> p.suspected || this.down[p.id]);
+                  }finally
+                  {
+                      this.lock.unlock();
+                  }
+                  if(peers.isEmpty())
+                  {
+                      return;
+                  }
+                  if(retry)
+                  {
+                      Thread.sleep(ServerThread.REQUEST_RETRY_MILLIS);
+                  }
+                  Map<Peer,CompletableFuture<PeerMessage>> replies = new LinkedHashMap<>();
+                  for(Peer p: peers)
+                  {
+                      replies.put(p, this.serverThread.messenger.send(p, msg));
+                  }
+                  peers.removeAll(this.serverThread.messenger.awaitAll(replies, this.askTimeout).keySet());
+                  retry = true;
+              }
+          }catch(InterruptedException e)
+          {
+              e.printStackTrace();
+          }
+      }
+
+      // Wait a little before asking a peer again. Returns false if interrupted
+      private boolean pause()
+      {
+          try
+          {
+              Thread.sleep(ServerThread.REQUEST_RETRY_MILLIS);
+              return true;
+          }catch(InterruptedException e)
+          {
+              e.printStackTrace();
+              return false;
+          }
+      }
+
+      // Send an escrow message to a peer and wait for the reply text, at most askTimeout ms.
+      // Returns null if it couldn't be reached. That doesn't take the peer to be down, only the
+      // failure detector does
+      private String ask(int serverId, String text)
+      {
+          Peer p = this.serverThread.getPeer(serverId);
+          try
+          {
+              PeerMessage reply = this.serverThread.messenger.send(p, PeerMessage.escrow(Server.serverId, text)).get(this.askTimeout, TimeUnit.MILLISECONDS);
+              return reply != null ? reply.text : null;
+          }catch(InterruptedException e)
+          {
+              e.printStackTrace();
+              return null;
+          }catch(ExecutionException | TimeoutException e)
+          {
+              // Treated like a peer that couldn't be reached
+              return null;
+          }
+      }
+
+      private void rebalanceIfLow()
+      {
+          if(poolSize() < this.lowWater && this.rebalancing.compareAndSet(false, true))
+          {
+              Server.startWorkerThread(() ->
+              {
+                  try
+                  {
+                      acquire(this.lowWater * 2, false);
+                  }finally
+                  {
+                      this.rebalancing.set(false);
+                  }
+              }, "escrow-rebalance", true);
+          }
+      }
+
+      // Ask peers for free seats, the peer we think has the most first. In the background only the
+      // richest peer is asked and only if it has more than us. When we're out of seats every peer
+      // that is up is asked before giving up, again while one of them can't be reached, until the
+      // server taking over from it would have. Returns the number of seats we got
+      private int acquire(int wanted, boolean untilFound)
+      {
+          long deadline = System.currentTimeMillis() + 2 * this.failureTimeout;
+          while(true)
+          {
+              int[] free = new int[this.numServers + 1];
+              int own;
+              List<Integer> candidates = new ArrayList<>();
+              this.lock.lock();
+              try
+              {
+                  SeatStore seats = this.serverThread.getSeats();
+                  for(int seatNum = 1; seatNum < this.owners.length; seatNum++)
+                  {
+                      if(seats.isBooked(seatNum) == false)
+                      {
+                          free[this.owners[seatNum]]++;
+                      }
+                  }
+                  own = this.pool.size();
+                  for(int id = 1; id <= this.numServers; id++)
+                  {
+                      if(id != Server.serverId && this.down[id] == false)
+                      {
+                          candidates.add(id);
+                      }
+                  }
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              candidates.sort((a, b) -> free[b] - free[a]);
+              boolean unreachable = false;
+              for(int id: candidates)
+              {
+                  if(untilFound == false && free[id] <= own + 1)
+                  {
+                      return 0;
+                  }
+                  // Counted before asking, the seats can come in with the changes the peer
+                  // confirms with us before it replies
+                  int before = poolSize();
+                  String reply = ask(id, "grant " + Math.max(1, untilFound ? wanted : (free[id] - own) / 2));
+                  if(reply == null)
+                  {
+                      unreachable = true;
+                      continue;
+                  }
+                  apply(reply);
+                  int got = poolSize() - before;
+                  if(got > 0 || untilFound == false)
+                  {
+                      return got;
+                  }
+              }
+              if(untilFound == false || unreachable == false || System.currentTimeMillis() >= deadline || pause() == false)
+              {
+                  return 0;
+              }
+          }
+      }
+
+      private int poolSize()
+      {
+          this.lock.lock();
+          try
+          {
+              return this.pool.size();
+          }finally
+          {
+              this.lock.unlock();
+          }
+      }
+
+      // The failure detector suspects a peer. The next server up after it takes over its seats and
+      // names and tells the others, every other server leaves it to that one. Taking over a peer
+      // can make us the next one up after another suspected peer, so they're all looked at
+      public void suspected()
+      {
+          List<String> taken = new ArrayList<>();
+          this.lock.lock();
+          try
+          {
+              boolean found = true;
+              while(found)
+              {
+                  found = false;
+                  for(Peer p: this.serverThread.messenger.otherPeers())
+                  {
+                      if(p.suspected && this.down[p.id] == false && successor(p.id) == Server.serverId)
+                      {
+                          int epoch = this.epochs[p.id] + 1;
+                          takeDown(p.id, epoch, Server.serverId);
+                          taken.add("down " + p.id + " " + epoch + " " + Server.serverId);
+                          found = true;
+                      }
+                  }
+              }
+          }finally
+          {
+              this.lock.unlock();
+          }
+          for(String text: taken)
+          {
+              Server.startWorkerThread(() -> tell(text), "escrow-down", true);
+          }
+      }
+
+      // A peer the failure detector suspected answers again. If we took it over, it gets our copy
+      // of every seat and the free seats of its starting share back, then its names. We hold the
+      // lock until it has them so the two of us never answer for its names at once. Any other peer
+      // gets our copy of every seat, it may have missed changes. Returns false if it didn't answer
+      public boolean readmit(int serverId)
+      {
+          String text;
+          this.lock.lock();
+          try
+          {
+              if(this.down[serverId] && this.takenBy[serverId] != Server.serverId)
+              {
+                  // The server that took it over gives it back
+                  return true;
+              }
+              if(this.down[serverId] == false)
+              {
+                  text = "changes" + changedSeats();
+              }
+              else
+              {
+                  int epoch = this.epochs[serverId] + 1;
+                  SeatStore seats = this.serverThread.getSeats();
+                  StringBuilder back = new StringBuilder();
+                  for(int seatNum = 1; seatNum < this.owners.length; seatNum++)
+                  {
+                      if(this.owners[seatNum] == Server.serverId && startingOwner(seatNum) == serverId && seats.isBooked(seatNum) == false)
+                      {
+                          back.append(' ').append(seatNum).append(':').append(this.stamps[seatNum] + 1).append(':').append(serverId).append(':');
+                      }
+                  }
+                  text = "up " + serverId + " " + epoch + " " + Server.serverId + back;
+                  // The seats given back come first, so they win over our copies of them
+                  if(ask(serverId, text + changedSeats()) == null)
+                  {
+                      return false;
+                  }
+                  takeUp(serverId, epoch, Server.serverId, back.toString());
+              }
+          }finally
+          {
+              this.lock.unlock();
+          }
+          if(text.startsWith("up"))
+          {
+              tell(text, serverId);
+          }
+          else
+          {
+              this.serverThread.messenger.send(this.serverThread.getPeer(serverId), PeerMessage.escrow(Server.serverId, text));
+          }
+          return true;
+      }
+
+      // Record that a server was taken over, unless we know of a newer change of its ownership. The
+      // caller holds the lock. Returns false if ignored
+      private boolean takeDown(int serverId, int epoch, int taker)
+      {
+          if(epoch <= this.epochs[serverId])
+          {
+              return false;
+          }
+          this.epochs[serverId] = epoch;
+          this.down[serverId] = true;
+          this.takenBy[serverId] = taker;
+          // Servers it took over are the taker's to give back now, like their seats
+          for(int id = 1; id <= this.numServers; id++)
+          {
+              if(this.takenBy[id] == serverId)
+              {
+                  this.takenBy[id] = taker;
+              }
+          }
+          moveSeats(serverId, taker);
+          System.err.println("Server " + serverId + " is down, its seats and names went to server " + taker);
+          return true;
+      }
+
+      // Record that a server got its seats back from the server that took it over, unless we know
+      // of a newer change of its ownership. The caller holds the lock. Returns false if ignored
+      private boolean takeUp(int serverId, int epoch, int taker, String changes)
+      {
+          if(epoch <= this.epochs[serverId])
+          {
+              return false;
+          }
+          // Whatever we knew, the server that took it over had all of its seats until now
+          moveSeats(serverId, taker);
+          this.epochs[serverId] = epoch;
+          this.down[serverId] = false;
+          this.takenBy[serverId] = 0;
+          apply(changes);
+          System.err.println("Server " + serverId + " is back up, server " + taker + " gave its seats and names back");
+          return true;
+      }
+
+      // Every seat one server owns goes to another. The caller holds the lock
+      private void moveSeats(int from, int to)
+      {
+          if(from == Server.serverId)
+          {
+              this.pool.clear();
+          }
+          SeatStore seats = this.serverThread.getSeats();
+          for(int seatNum = 1; seatNum < this.owners.length; seatNum++)
+          {
+              if(this.owners[seatNum] == from)
+              {
+                  this.owners[seatNum] = to;
+                  if(to == Server.serverId && seats.isBooked(seatNum) == false)
+                  {
+                      this.pool.add(seatNum);
+                  }
+              }
+          }
+      }
+
+      // Catch up with a peer when coming up: take every seat it changed and the epoch of every
+      // server. If this server was taken over, it only forwards commands until it's given back its
+      // seats and names
+      public void sync()
+      {
+          for(Peer p: this.serverThread.messenger.otherPeers())
+          {
+              PeerMessage reply = this.serverThread.messenger.send(p, PeerMessage.escrow(Server.serverId, "sync")).join();
+              if(reply == null || reply.text == null || reply.text.startsWith("sync") == false)
+              {
+                  // Not up yet, or not in escrow mode
+                  continue;
+              }
+              String[] parts = reply.text.split("\\s+", 3);
+              this.lock.lock();
+              try
+              {
+                  String[] servers = parts[1].split(",");
+                  for(int id = 1; id <= servers.length; id++)
+                  {
+                      String[] fields = servers[id - 1].split(":");
+                      int epoch = Integer.parseInt(fields[0]);
+                      int taker = Integer.parseInt(fields[1]);
+                      if(taker != 0)
+                      {
+                          takeDown(id, epoch, taker);
+                      }
+                      else
+                      {
+                          this.epochs[id] = Math.max(this.epochs[id], epoch);
+                      }
+                  }
+                  if(parts.length > 2)
+                  {
+                      apply(parts[2]);
+                  }
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              return;
+          }
+      }
+
+      // Answer an escrow message from a peer
+      public PeerMessage handle(PeerMessage msg)
+      {
+          String[] tokens = msg.text.trim().split("\\s+", 3);
+          if("forward".equals(tokens[0]))
+          {
+              String result = run(tokens[2].split("\\s+"), Integer.parseInt(tokens[1]));
+              return PeerMessage.reply(result != null ? result : "");
+          }
+          if("confirm".equals(tokens[0]))
+          {
+              // Refused if we know the sender was taken over since the epoch it sent them at
+              this.lock.lock();
+              try
+              {
+                  if(Integer.parseInt(tokens[1]) < this.epochs[msg.serverId])
+                  {
+                      return PeerMessage.reply(FENCED + " " + this.epochs[msg.serverId] + " " + this.takenBy[msg.serverId]);
+                  }
+                  if(tokens.length > 2)
+                  {
+                      apply(tokens[2]);
+                  }
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              return PeerMessage.reply("ok");
+          }
+          if("changes".equals(tokens[0]))
+          {
+              if(tokens.length > 1)
+              {
+                  apply(msg.text.substring("changes".length()));
+              }
+              return PeerMessage.reply("ok");
+          }
+          if("grant".equals(tokens[0]))
+          {
+              return PeerMessage.reply("changes " + grant(msg.serverId, Integer.parseInt(tokens[1]), tokens.length > 2 ? Integer.parseInt(tokens[2]) : 0));
+          }
+          if("down".equals(tokens[0]) || "up".equals(tokens[0]))
+          {
+              String[] fields = msg.text.trim().split("\\s+", 5);
+              int serverId = Integer.parseInt(fields[1]);
+              int epoch = Integer.parseInt(fields[2]);
+              int taker = Integer.parseInt(fields[3]);
+              this.lock.lock();
+              try
+              {
+                  if("down".equals(fields[0]))
+                  {
+                      takeDown(serverId, epoch, taker);
+                  }
+                  else
+                  {
+                      takeUp(serverId, epoch, taker, fields.length > 4 ? fields[4] : "");
+                  }
+              }finally
+              {
+                  this.lock.unlock();
+              }
+              return PeerMessage.reply("ok");
+          }
+          if("sync".equals(tokens[0]))
+          {
+              return PeerMessage.reply(syncText());
+          }
+          return PeerMessage.reply("");
+      }
+
+      // Give a peer up to count of our free seats, half of them at most, or one seat it asked for.
+      // Returns the seats as changes, including the seat asked for when we couldn't give it
+      private String grant(int serverId, int count, int seatNum)
+      {
+          List<Integer> given = new ArrayList<>();
+          StringBuilder before = new StringBuilder();
+          StringBuilder changes = new StringBuilder();
+          this.lock.lock();
+          try
+          {
+              if(seatNum > 0 && seatNum < this.owners.length)
+              {
+                  if(this.pool.remove(seatNum))
+                  {
+                      given.add(seatNum);
+                  }
+                  else
+                  {
+                      changes.append(entry(seatNum));
+                  }
+              }
+              else
+              {
+                  int toGive = Math.min(count, (this.pool.size() + 1) / 2);
+                  for(int i = 0; i < toGive; i++)
+                  {
+                      given.add(this.pool.pollLast());
+                  }
+              }
+              for(int seat: given)
+              {
+                  before.append(' ').append(entry(seat));
+                  this.owners[seat] = serverId;
+                  if(changes.length() > 0)
+                  {
+                      changes.append(' ');
+                  }
+                  changes.append(changed(seat));
+              }
+          }finally
+          {
+              this.lock.unlock();
+          }
+          if(given.isEmpty() || publish(changes.toString(), before.toString(), serverId))
+          {
+              return changes.toString();
+          }
+          // Undone, the peer gets our copies of the seats
+          this.lock.lock();
+          try
+          {
+              changes.setLength(0);
+              for(int seat: given)
+              {
+                  changes.append(' ').append(entry(seat));
+              }
+              return changes.toString().trim();
+          }finally
+          {
+              this.lock.unlock();
+          }
+      }
+
+      // Every seat that changed, each after a space. The caller holds the lock
+      private String changedSeats()
+      {
+          StringBuilder text = new StringBuilder();
+          for(int seatNum = 1; seatNum < this.owners.length; seatNum++)
+          {
+              if(this.stamps[seatNum] > 0)
+              {
+                  text.append(' ').append(entry(seatNum));
+              }
+          }
+          return text.toString();
+      }
+
+      // The epoch of every server and the server that took it over, then every seat that changed
+      private String syncText()
+      {
+          this.lock.lock();
+          try
+          {
+              StringBuilder text = new StringBuilder("sync ");
+              for(int id = 1; id <= this.numServers; id++)
+              {
+                  text.append(id > 1 ? "," : "").append(this.epochs[id]).append(':').append(this.takenBy[id]);
+              }
+              return text.append(changedSeats()).toString();
+          }finally
+          {
+              this.lock.unlock();
+          }
+      }
+  }
+
+  // A change to the seats written to the log. A delta of one partition, or of all the seats with a
+  // single partition, changes from escrow mode that aren't versioned, or a full seat list that
+  // replaces everything
+  private static class LogRecord
+  {
+      static final String DELTA_RECORD = "d";
+      static final String ESCROW_RECORD = "e";
+      static final String SNAPSHOT_RECORD = "s";
+
+      String kind;
+      int partition;
+      int baseVersion;
+      int version;
+      // Versions of every partition, only for a full seat list
+      int[] versions;
+      int[] seatNums;
+      String[] names;
+      // Completed once the record is on disk
+      CompletableFuture<Void> written = new CompletableFuture<>();
+
+      public LogRecord(String kind, int[] seatNums, String[] names)
+      {
+          this.kind = kind;
+          this.seatNums = seatNums;
+          this.names = names;
+      }
+
+      // The changed seats of a message, with the version they bring the partition to
+      public static LogRecord delta(PeerMessage msg)
+      {
+          LogRecord r = new LogRecord(DELTA_RECORD, msg.seatNums, msg.bookedBy);
+          r.partition = msg.partition;
+          r.baseVersion = msg.baseVersion;
+          r.version = msg.version;
+          return r;
+      }
+
+      // The full seat list replacing ours
+      public static LogRecord snapshot(int version, SeatStore seats)
+      {
+          PeerMessage full = PeerMessage.withSeats(UPDATE, version, seats);
+          LogRecord r = new LogRecord(SNAPSHOT_RECORD, full.seatNums, full.bookedBy);
+          r.version = version;
+          r.versions = full.versions;
+          return r;
+      }
+
+      // One line: the kind, the partition and versions of a delta, then seat=name for each seat
+      // with nothing after the = for a free seat
+      public String toText()
+      {
+          StringBuilder text = new StringBuilder(this.kind);
+          if(DELTA_RECORD.equals(this.kind))
+          {
+              text.append(' ').append(this.partition).append(' ').append(this.baseVersion).append(' ').append(this.version);
+          }
+          for(int i = 0; i < this.seatNums.length; i++)
+          {
+              text.append(' ').append(this.seatNums[i]).append('=').append(this.names[i] != null ? this.names[i] : "");
+          }
+          return text.toString();
+      }
+
+      public static LogRecord fromText(String line)
+      {
+          String[] tokens = line.trim().split("\\s+");
+          int first = DELTA_RECORD.equals(tokens[0]) ? 4 : 1;
+          int count = tokens.length - first;
+          LogRecord r = new LogRecord(tokens[0], new int[count], new String[count]);
+          if(DELTA_RECORD.equals(tokens[0]))
+          {
+              r.partition = Integer.parseInt(tokens[1]);
+              r.baseVersion = Integer.parseInt(tokens[2]);
+              r.version = Integer.parseInt(tokens[3]);
+          }
+          else if(ESCROW_RECORD.equals(tokens[0]) == false)
+          {
+              throw new IllegalArgumentException("Unknown log record " + tokens[0]);
+          }
+          for(int i = 0; i < count; i++)
+          {
+              String[] seat = tokens[first + i].split("=", 2);
+              r.seatNums[i] = Integer.parseInt(seat[0]);
+              r.names[i] = seat[1].isEmpty() ? null : seat[1];
+          }
+          return r;
+      }
+  }
+
+  // Write-ahead log of the seat changes and snapshots of the seats, kept in the dataDir directory
+  // so a server can restart without a full seat list from its peers. One writer thread appends the
+  // changes and syncs the log once for everything queued since the last sync, so workers logging at
+  // the same time share the fsync. The writer keeps its own copy of the seats built from the log
+  // and writes it out as the snapshot every snapshotEvery changes, then starts the log over
+  private static class SeatLog implements Runnable
+  {
+      File logFile;
+      File snapshotFile;
+      FileOutputStream log;
+      LinkedBlockingQueue<LogRecord> pending = new LinkedBlockingQueue<>();
+      // The seats and versions as of the last record written
+      SeatStore seats;
+      int version;
+      int[] versions;
+      int snapshotEvery;
+      int sinceSnapshot = 0;
+      // The last deltas written, oldest first, to catch up peers that restart
+      ArrayDeque<LogRecord> recent = new ArrayDeque<>();
+      Lock recentLock = new ReentrantLock();
+
+      public SeatLog(String dataDir, int serverId, int numSeats, int numPartitions)
+      {
+          File dir = new File(dataDir);
+          dir.mkdirs();
+          this.logFile = new File(dir, "server" + serverId + ".log");
+          this.snapshotFile = new File(dir, "server" + serverId + ".snapshot");
+          this.seats = Server.newSeatStore(numSeats);
+          this.versions = new int[numPartitions];
+          this.snapshotEvery = Math.max(1, Server.getIntOption("snapshotEvery", 10000));
+      }
+
+      // Read the snapshot and replay the log after it. A record cut short by a crash ends the replay.
+      // The recovered seats go to a new snapshot so the log starts empty
+      public void recover() throws IOException
+      {
+          if(this.snapshotFile.exists())
+          {
+              try(BufferedReader reader = new BufferedReader(new FileReader(this.snapshotFile)))
+              {
+                  String[] header = reader.readLine().trim().split("\\s+");
+                  int[] versions = "-".equals(header[3]) ? new int[1] : PeerMessage.parseVersions(header[3]);
+                  if(Integer.parseInt(header[1]) != this.seats.size() || versions.length != this.versions.length)
+                  {
+                      throw new IOException("Snapshot " + this.snapshotFile + " is for another number of seats or partitions");
+                  }
+                  this.version = Integer.parseInt(header[2]);
+                  this.versions = versions;
+                  String line;
+                  while((line = reader.readLine()) != null)
+                  {
+                      String[] seat = line.split("=", 2);
+                      this.seats.book(Integer.parseInt(seat[0]), seat[1]);
+                  }
+              }
+          }
+          if(this.logFile.exists())
+          {
+              try(BufferedReader reader = new BufferedReader(new FileReader(this.logFile)))
+              {
+                  String line;
+                  while((line = reader.readLine()) != null)
+                  {
+                      try
+                      {
+                          apply(LogRecord.fromText(line));
+                      }catch(RuntimeException e)
+                      {
+                          System.err.println("Ignoring the end of the seat log from a record cut short: " + line);
+                          break;
+                      }
+                  }
+              }
+          }
+          writeSnapshot();
+      }
+
+      // Queue a record for the writer. Wait on its written future for it to be on disk
+      public LogRecord append(LogRecord r)
+      {
+          this.pending.add(r);
+          return r;
+      }
+
+      public void run()
+      {
+          List<LogRecord> batch = new ArrayList<>();
+          while(true)
+          {
+              try
+              {
+                  batch.add(this.pending.take());
+                  this.pending.drainTo(batch);
+              }catch(InterruptedException e)
+              {
+                  return;
+              }
+              try
+              {
+                  StringBuilder text = new StringBuilder();
+                  boolean snapshot = false;
+                  for(LogRecord r: batch)
+                  {
+                      apply(r);
+                      if(LogRecord.SNAPSHOT_RECORD.equals(r.kind))
+                      {
+                          // Everything before it is replaced
+                          text.setLength(0);
+                          snapshot = true;
+                      }
+                      else
+                      {
+                          text.append(r.toText()).append('\n');
+                      }
+                  }
+                  this.sinceSnapshot += batch.size();
+                  if(snapshot || this.sinceSnapshot >= this.snapshotEvery)
+                  {
+                      writeSnapshot();
+                  }
+                  else
+                  {
+                      this.log.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                      this.log.getChannel().force(false);
+                  }
+                  for(LogRecord r: batch)
+                  {
+                      r.written.complete(null);
+                  }
+              }catch(IOException e)
+              {
+                  System.err.println("Unable to write the seat log");
+                  e.printStackTrace();
+                  for(LogRecord r: batch)
+                  {
+                      r.written.completeExceptionally(e);
+                  }
+              }
+              keepRecent(batch);
+              batch.clear();
+          }
+      }
+
+      // Apply a record to the writer's copy of the seats. A delta older than the version we have is skipped
+      private void apply(LogRecord r)
+      {
+          if(LogRecord.SNAPSHOT_RECORD.equals(r.kind))
+          {
+              this.seats = Server.newSeatStore(this.seats.size());
+              this.version = r.version;
+              this.versions = r.versions != null ? r.versions.clone() : new int[this.versions.length];
+          }
+          int current = 0;
+          if(LogRecord.DELTA_RECORD.equals(r.kind))
+          {
+              current = this.versions.length == 1 ? this.version : this.versions[r.partition];
+              if(r.version <= current)
+              {
+                  return;
+              }
+          }
+          // Free the changed seats first so a name moving between seats can be booked again
+          for(int i = 0; i < r.seatNums.length; i++)
+          {
+              if(r.names[i] == null)
+              {
+                  this.seats.set(r.seatNums[i], null);
+              }
+          }
+          for(int i = 0; i < r.seatNums.length; i++)
+          {
+              if(r.names[i] != null)
+              {
+                  this.seats.set(r.seatNums[i], r.names[i]);
+              }
+          }
+          if(LogRecord.DELTA_RECORD.equals(r.kind))
+          {
+              this.version += r.version - current;
+              this.versions[r.partition] = r.version;
+          }
+      }
+
+      // Write the seats to a new snapshot file that replaces the old one, then empty the log
+      private void writeSnapshot() throws IOException
+      {
+          File tmp = new File(this.snapshotFile.getPath() + ".tmp");
+          try(FileOutputStream out = new FileOutputStream(tmp))
+          {
+              StringBuilder text = new StringBuilder();
+              String versionsText = "-";
+              if(this.versions.length > 1)
+              {
+                  versionsText = Arrays.stream(this.versions).mapToObj(String::valueOf).collect(Collectors.joining(","));
+              }
+              text.append("snapshot ").append(this.seats.size()).append(' ').append(this.version).append(' ').append(versionsText).append('\n');
+              for(int seatNum = 1; seatNum <= this.seats.size(); seatNum++)
+              {
+                  String name = this.seats.getBookedBy(seatNum);
+                  if(name != null)
+                  {
+                      text.append(seatNum).append('=').append(name).append('\n');
+                  }
+              }
+              out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+              out.getChannel().force(true);
+          }
+          Files.move(tmp.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          if(this.log != null)
+          {
+              this.log.close();
+          }
+          this.log = new FileOutputStream(this.logFile, false);
+          this.log.getChannel().force(true);
+          this.sinceSnapshot = 0;
+      }
+
+      private void keepRecent(List<LogRecord> batch)
+      {
+          this.recentLock.lock();
+          try
+          {
+              for(LogRecord r: batch)
+              {
+                  if(LogRecord.SNAPSHOT_RECORD.equals(r.kind))
+                  {
+                      // Older deltas don't lead up to the new seats
+                      this.recent.clear();
+                  }
+                  else if(LogRecord.DELTA_RECORD.equals(r.kind))
+                  {
+                      this.recent.addLast(r);
+                  }
+              }
+              while(this.recent.size() > this.snapshotEvery)
+              {
+                  this.recent.removeFirst();
+              }
+          }finally
+          {
+              this.recentLock.unlock();
+          }
+      }
+
+      // The seats changed since a version as a delta from it, or null if the deltas kept don't go
+      // back that far. Only with a single partition, where a version orders every change
+      public PeerMessage changesSince(int since)
+      {
+          if(this.versions.length > 1)
+          {
+              return null;
+          }
+          this.recentLock.lock();
+          try
+          {
+              if(this.recent.isEmpty() || this.recent.peekFirst().baseVersion > since)
+              {
+                  return null;
+              }
+              // The last name of each seat changed after the version
+              TreeMap<Integer,String> changed = new TreeMap<>();
+              int version = since;
+              for(LogRecord r: this.recent)
+              {
+                  if(r.version <= since)
+                  {
+                      continue;
+                  }
+                  for(int i = 0; i < r.seatNums.length; i++)
+                  {
+                      changed.put(r.seatNums[i], r.names[i]);
+                  }
+                  version = Math.max(version, r.version);
+              }
+              PeerMessage m = new PeerMessage(DELTA);
+              m.baseVersion = since;
+              m.version = version;
+              m.seatNums = changed.keySet().stream().mapToInt(Integer::intValue).toArray();
+              m.bookedBy = changed.values().toArray(new String[0]);
+              return m;
+          }finally
+          {
+              this.recentLock.unlock();
+          }
+      }
+  }
+
+  // Digests of ranges of seats to find where two servers' seats differ. A range's digest is the sum
+  // of a hash of each booked seat, so the digest of a range is the sum of its subranges'. A range is
+  // split into FANOUT subranges until it has LEAF_SIZE seats or fewer. Each seat store keeps one up
+  // to date as seats are booked and freed: the digests of blocks of LEAF_SIZE seats in a Fenwick
+  // tree, so the digest of a range sums a node per level plus the seats at its ends that only fill
+  // part of a block
+  private static class SeatDigest
+  {
+      static final int FANOUT = 16;
+      static final int LEAF_SIZE = 64;
+      // Fenwick tree of the block digests, indexed from 1
+      AtomicLongArray tree;
+
+      public SeatDigest(int numSeats)
+      {
+          this.tree = new AtomicLongArray((numSeats + LEAF_SIZE - 1) / LEAF_SIZE + 1);
+      }
+
+      // The name was booked against the seat
+      public void booked(int seatNum, String name)
+      {
+          add(block(seatNum) + 1, hash(seatNum, name));
+      }
+
+      // The name was freed from the seat
+      public void freed(int seatNum, String name)
+      {
+          add(block(seatNum) + 1, -hash(seatNum, name));
+      }
+
+      private void add(int node, long delta)
+      {
+          for(int i = node; i < this.tree.length(); i += i & -i)
+          {
+              this.tree.addAndGet(i, delta);
+          }
+      }
+
+      // Digest of the first blocks
+      private long prefix(int blocks)
+      {
+          long digest = 0;
+          for(int i = blocks; i > 0; i -= i & -i)
+          {
+              digest += this.tree.get(i);
+          }
+          return digest;
+      }
+
+      private static int block(int seatNum)
+      {
+          return (seatNum - 1) / LEAF_SIZE;
+      }
+
+      // Digest of the seats of the store from one seat number to another
+      public long hash(SeatStore seats, int from, int to)
+      {
+          int first = block(from);
+          int last = block(to);
+          if(first == last)
+          {
+              return sum(seats, from, to);
+          }
+          // The whole blocks in between from the tree, the ends seat by seat
+          return sum(seats, from, (first + 1) * LEAF_SIZE) + prefix(last) - prefix(first + 1) + sum(seats, last * LEAF_SIZE + 1, to);
+      }
+
+      private static long hash(int seatNum, String name)
+      {
+          // splitmix64 finalizer
+          long h = ((long) seatNum << 32) ^ name.hashCode();
+          h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+          h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+          return h ^ (h >>> 31);
+      }
+
+      private static long sum(SeatStore seats, int from, int to)
+      {
+          long digest = 0;
+          for(int seatNum = from; seatNum <= to; seatNum++)
+          {
+              String name = seats.getBookedBy(seatNum);
+              if(name != null)
+              {
+                  digest += hash(seatNum, name);
+              }
+          }
+          return digest;
+      }
+
+      public static boolean isLeaf(int[] range)
+      {
+          return range[1] - range[0] + 1 <= LEAF_SIZE;
+      }
+
+      public static List<int[]> split(int[] range)
+      {
+          List<int[]> children = new ArrayList<>();
+          int size = (range[1] - range[0] + FANOUT) / FANOUT;
+          for(int from = range[0]; from <= range[1]; from += size)
+          {
+              children.add(new int[] {from, Math.min(range[1], from + size - 1)});
+          }
+          return children;
+      }
+
+      // Ranges as from-to separated by spaces
+      public static String rangesText(List<int[]> ranges)
+      {
+          StringBuilder text = new StringBuilder();
+          for(int[] range: ranges)
+          {
+              text.append(' ').append(range[0]).append('-').append(range[1]);
+          }
+          return text.toString();
+      }
+
+      public static List<int[]> parseRanges(String[] tokens, int first)
+      {
+          List<int[]> ranges = new ArrayList<>();
+          for(int i = first; i < tokens.length; i++)
+          {
+              String[] bounds = tokens[i].split("-");
+              ranges.add(new int[] {Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])});
+          }
+          return ranges;
+      }
+  }
+
+  // Java Flight Recorder events of the mutual exclusion protocol, so a recording shows next to the
+  // CPU and GC data where the servers wait on each other. An event lasts from begin() to commit().
+  // Left uncommitted while no recording is on, they cost next to nothing
+  @Category({"Seat Reservation", "Mutual Exclusion"})
+  private static abstract class ProtocolEvent extends Event
+  {
+      // The server that requested, acknowledged or released, this server for the rest
+      @Label("Server Id")
+      int serverId;
+      @Label("Lamport Timestamp")
+      int timestamp;
+      @Label("Partition")
+      int partition;
+  }
+
+  // From sending a request for the CS to every peer answering it
+  @Name("seats.RequestSent")
+  @Label("CS Request Sent")
+  private static class RequestSentEvent extends ProtocolEvent
+  {
+  }
+
+  // Handling a peer's request
+  @Name("seats.RequestReceived")
+  @Label("CS Request Received")
+  private static class RequestReceivedEvent extends ProtocolEvent
+  {
+  }
+
+  // The moment a peer's acknowledgement arrives, with no duration. The wait for it is in the
+  // RequestSent event, this one shows which peer answered last
+  @Name("seats.AckReceived")
+  @Label("CS Acknowledgement Received")
+  private static class AckReceivedEvent extends ProtocolEvent
+  {
+  }
+
+  // From every peer acknowledging our request to it reaching the top of the queue
+  @Name("seats.CsWait")
+  @Label("CS Wait")
+  private static class CsWaitEvent extends ProtocolEvent
+  {
+  }
+
+  // From entering the CS to releasing it
+  @Name("seats.CsHeld")
+  @Label("CS Held")
+  private static class CsHeldEvent extends ProtocolEvent
+  {
+  }
+
+  // Applying the seats a peer sent
+  @Name("seats.UpdateApplied")
+  @Label("Seat Update Applied")
+  private static class UpdateAppliedEvent extends ProtocolEvent
+  {
+      @Label("Version")
+      int version;
+      @Label("Seats")
+      int seats;
+      @Label("Bytes")
+      @DataAmount
+      int bytes;
+  }
+
+  // From sending the release of the CS to every peer answering it, with Ricart-Agrawala sending
+  // the acknowledgements held back
+  @Name("seats.ReleaseSent")
+  @Label("CS Release Sent")
+  private static class ReleaseSentEvent extends ProtocolEvent
+  {
+  }
+
+  @Name("seats.ReleaseReceived")
+  @Label("CS Release Received")
+  private static class ReleaseReceivedEvent extends ProtocolEvent
+  {
+  }
+
+  // Latencies in microseconds for the stats command, counted in buckets about 6% wide. Values
+  // below 32 get a bucket each, above that every power of two is split into 16 buckets. Recording
+  // only updates counters allocated up front, so it can run on every command and message
+  private static class LatencyStats
+  {
+      private static final int SUB_BUCKETS = 16;
+      AtomicLongArray counts = new AtomicLongArray(2 * SUB_BUCKETS + 59 * SUB_BUCKETS);
+      AtomicLong count = new AtomicLong(0);
+      AtomicLong sum = new AtomicLong(0);
+      AtomicLong max = new AtomicLong(0);
+
+      private static int bucket(long value)
+      {
+          if(value < 2 * SUB_BUCKETS)
+          {
+              return (int) Math.max(0, value);
+          }
+          int exponent = 63 - Long.numberOfLeadingZeros(value);
+          int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+          return 2 * SUB_BUCKETS + (exponent - 5) * SUB_BUCKETS + sub;
+      }
+
+      // The highest value that falls in the bucket
+      private static long highest(int bucket)
+      {
+          if(bucket < 2 * SUB_BUCKETS)
+          {
+              return bucket;
+          }
+          int exponent = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 5;
+          long sub = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+          return ((sub + 1) << (exponent - 4)) - 1;
+      }
+
+      // Record the time since startNanos, a System.nanoTime()
+      public void recordSince(long startNanos)
+      {
+          long micros = (System.nanoTime() - startNanos) / 1000;
+          this.counts.incrementAndGet(bucket(micros));
+          this.count.incrementAndGet();
+          this.sum.addAndGet(micros);
+          long m;
+          while(micros > (m = this.max.get()) && this.max.compareAndSet(m, micros) == false)
+          {
+          }
+      }
+
+      private long percentile(long[] snapshot, long total, double p)
+      {
+          long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+          long seen = 0;
+          for(int i = 0; i < snapshot.length; i++)
+          {
+              seen += snapshot[i];
+              if(seen >= rank)
+              {
+                  return Math.min(highest(i), this.max.get());
+              }
+          }
+          return this.max.get();
+      }
+
+      public String summary()
+      {
+          long[] snapshot = new long[this.counts.length()];
+          long total = 0;
+          for(int i = 0; i < snapshot.length; i++)
+          {
+              snapshot[i] = this.counts.get(i);
+              total += snapshot[i];
+          }
+          if(total == 0)
+          {
+              return "count=0";
+          }
+          return "count=" + total + " mean=" + this.sum.get() / Math.max(1, this.count.get()) + "us"
+                  + " p50=" + percentile(snapshot, total, 50) + "us p99=" + percentile(snapshot, total, 99)
+                  + "us p999=" + percentile(snapshot, total, 99.9) + "us max=" + this.max.get() + "us";
+      }
+  }
+
+  // Heartbeats to the peers. A peer we haven't heard from for a heartbeat interval gets a version
+  // query, and a peer that hasn't answered anything for failureTimeout ms is suspected to be down:
+  // its requests leave the queues, messages waiting on it give up and no new ones wait on it. A
+  // suspected peer is let back in when it answers a heartbeat or handshakes after a restart
+  private static class FailureDetector implements Runnable
+  {
+      ServerThread serverThread;
+      long interval;
+      long timeout;
+
+      public FailureDetector(ServerThread serverThread)
+      {
+          this.serverThread = serverThread;
+          this.interval = Math.max(1, Server.getIntOption("heartbeat", 500));
+          this.timeout = Math.max(this.interval, Server.getIntOption("failureTimeout", 3000));
+      }
+
+      public void run()
+      {
+          long last = System.currentTimeMillis();
+          long resumed = 0;
+          while(true)
+          {
+              try
+              {
+                  Thread.sleep(this.interval);
+              }catch(InterruptedException e)
+              {
+                  return;
+              }
+              long now = System.currentTimeMillis();
+              if(now - last >= this.timeout)
+              {
+                  // We slept for a whole timeout, so it was this process that stopped, not the
+                  // peers. They get a timeout from now before being suspected
+                  resumed = now;
+              }
+              last = now;
+              for (Peer p: this.serverThread.messenger.otherPeers())
+              {
+                  if(p.suspected == false && now - Math.max(p.lastHeard, resumed) >= this.timeout)
+                  {
+                      this.serverThread.suspect(p);
+                  }
+                  if(p.suspected || now - p.lastHeard >= this.interval)
+                  {
+                      heartbeat(p);
+                  }
+              }
+          }
+      }
+
+      // One heartbeat at a time per peer
+      private void heartbeat(Peer p)
+      {
+          if(p.heartbeating.compareAndSet(false, true) == false)
+          {
+              return;
+          }
+          PeerMessage ping = PeerMessage.version(Server.serverId, dataVersion.get());
+          this.serverThread.messenger.send(p, ping).whenComplete((reply, e) ->
+          {
+              p.heartbeating.set(false);
+              if(reply != null && p.suspected)
+              {
+                  // Off the thread that got the reply, letting the peer back in may message it
+                  Server.startWorkerThread(() -> this.serverThread.readmit(p, reply), "readmit-" + p.id, true);
+              }
+          });
+      }
+  }
+
+  private static class RequestComparator implements Comparator<Request>
+  {
+      
+      public int compare(Request req1, Request req2)
+      {
+          if(req1 == null)
+          {
+              if(req2 == null)
+              {
+                  return 0;
+              }
+              return -1;
+          }
+          if(req2 == null)
+          {
+              return 1;
+          }
+
+          int comparison = Integer.compare(req1.logicalTimestamp,req2.logicalTimestamp);
+          if(comparison == 0)
+          {
+              comparison = Integer.compare(req1.serverId, req2.serverId);
+          }
+          return comparison;
+      }
+
+  }
+
+  // Class to represent a request to enter the critical section
+  private static class Request
+  {
+      int serverId;
+      int logicalTimestamp;
+      // Completed once when a request of this server may enter the CS, null for a peer's request
+      CompletableFuture<Void> granted;
+      // Set once every peer acknowledged a request of this server
+      boolean acknowledged;
+
+      public Request(int serverId,int lc)
+      {
+          this.serverId = serverId;
+          this.logicalTimestamp = lc;
+      }
+
+      @Override
+      public boolean equals(Object obj) 
+      {
+          if (obj == this) 
+          {
+              return true;
+          }
+          if (obj == null || obj.getClass() != this.getClass()) 
+          {
+              return false;
+          }
+
+          Request other = (Request) obj;
+          // Requests are equal if they are the same request of the same server
+          return this.serverId == other.serverId && this.logicalTimestamp == other.logicalTimestamp;
+      }
+
+      @Override
+      public int hashCode()
+      {
+          int prime = 31;
+          int result = 1;
+          result = prime * result + serverId;
+          result = prime * result + logicalTimestamp;
+          return result;
+      }
+
+  }
+
+  private static class Seat
+  {
+      int id;
+      boolean isBooked;
+      String bookedBy;
+      Lock lock = new ReentrantLock();
+
+
+      public Seat (int id)
+      {
+          this.id = id;
+          this.isBooked = false;
+          this.bookedBy = null;
+      }
+
+      public boolean freeSeat()
+      {
+          lock.lock();
+          // free the seat
+          this.isBooked = false;
+          this.bookedBy = null;
+          lock.unlock();
+          return true;
+      }
+      
+      public boolean isBooked()
+      {
+          lock.lock();
+          boolean value = this.isBooked;
+          lock.unlock();
+          return value;
+      }
+
+      public String getBookedBy()
+      {
+
+          lock.lock();
+          String value = this.bookedBy;
+          lock.unlock();
+          return value;
+      }
+
+      public boolean book(String name)
+      {
+          lock.lock();
+          boolean isBooked = this.isBooked;
+          if(isBooked)
+          {
+              lock.unlock();
+              return false;
+          }
+          // book the seat
+          this.bookedBy = name;
+          this.isBooked = true;
+          // Release the lock after updating the quantity
+          lock.unlock();
+          return true;
+      }
+
+      @Override
+      // To json String
+       public String toString() 
+       { 
+           return PeerMessage.appendSeatJson(new StringBuilder(), this.id, this.getBookedBy()).toString();
+       } 
+  }
+
+  // Bitmap of the free seats. A set bit in the bottom level marks a free seat and a set bit in
+  // each level above marks a word below it that may have free seats, so finding a free seat only
+  // looks at one word per level
+  private static class FreeSeatBitmap
+  {
+      AtomicLongArray[] levels;
+      AtomicInteger freeCount;
+
+      // Create a bitmap where every seat is free
+      public FreeSeatBitmap(int numSeats)
+      {
+          List<AtomicLongArray> levelList = new ArrayList<>();
+          int bits = numSeats;
+          while(true)
+          {
+              int words = Math.max(1, (bits + 63) >>> 6);
+              AtomicLongArray level = new AtomicLongArray(words);
+              setFirstBits(level, bits);
+              levelList.add(level);
+              if(words == 1)
+              {
+                  break;
+              }
+              bits = words;
+          }
+          this.levels = levelList.toArray(new AtomicLongArray[0]);
+          this.freeCount = new AtomicInteger(numSeats);
+      }
+
+      private static void setFirstBits(AtomicLongArray level, int bits)
+      {
+          for(int w = 0; w < level.length(); w++)
+          {
+              int count = Math.min(64, bits - (w << 6));
+              if(count <= 0)
+              {
+                  break;
+              }
+              level.set(w, count == 64 ? -1L : (1L << count) - 1);
+          }
+      }
+
+      public int freeCount()
+      {
+          return this.freeCount.get();
+      }
+
+      public boolean isFree(int seatNum)
+      {
+          int bit = seatNum - 1;
+          return (this.levels[0].get(bit >>> 6) & (1L << bit)) != 0;
+      }
+
+      // Mark the seat as taken. Returns false if the seat wasn't free
+      public boolean claim(int seatNum)
+      {
+          int bit = seatNum - 1;
+          int w = bit >>> 6;
+          long mask = 1L << bit;
+          AtomicLongArray bottom = this.levels[0];
+          while(true)
+          {
+              long current = bottom.get(w);
+              if((current & mask) == 0)
+              {
+                  return false;
+              }
+              long updated = current & ~mask;
+              if(bottom.compareAndSet(w, current, updated))
+              {
+                  this.freeCount.decrementAndGet();
+                  if(updated == 0)
+                  {
+                      clearSummary(1, w);
+                  }
+                  return true;
+              }
+          }
+      }
+
+      // Take the lowest numbered free seat. Returns -1 if there are no free seats
+      public int claimFirst()
+      {
+          int top = this.levels.length - 1;
+          while(this.freeCount.get() > 0)
+          {
+              // Walk down from the top level following the lowest set bit
+              int index = 0;
+              int level = top;
+              long word = this.levels[top].get(0);
+              while(word != 0 && level > 0)
+              {
+                  index = (index << 6) + Long.numberOfTrailingZeros(word);
+                  level--;
+                  word = this.levels[level].get(index);
+              }
+              if(word == 0)
+              {
+                  if(level < top)
+                  {
+                      // The summary bit is stale, clear it and start over
+                      clearSummary(level + 1, index);
+                  }
+                  else
+                  {
+                      // A seat is being freed and hasn't reached the summary yet
+                      Thread.onSpinWait();
+                  }
+                  continue;
+              }
+              int bit = Long.numberOfTrailingZeros(word);
+              long updated = word & ~(1L << bit);
+              if(this.levels[0].compareAndSet(index, word, updated))
+              {
+                  this.freeCount.decrementAndGet();
+                  if(updated == 0)
+                  {
+                      clearSummary(1, index);
+                  }
+                  return (index << 6) + bit + 1;
+              }
+          }
+          return -1;
+      }
+
+      // Free seats from one seat number to another
+      public int freeCount(int from, int to)
+      {
+          int firstBit = from - 1;
+          int lastBit = to - 1;
+          int count = 0;
+          for(int w = firstBit >>> 6; w <= lastBit >>> 6; w++)
+          {
+              count += Long.bitCount(this.levels[0].get(w) & rangeMask(w, firstBit, lastBit));
+          }
+          return count;
+      }
+
+      // Take the lowest numbered free seat from one seat number to another. Returns -1 if they're
+      // all taken. Scans the bottom level, a range is a partition of the seats
+      public int claimFirst(int from, int to)
+      {
+          int firstBit = from - 1;
+          int lastBit = to - 1;
+          AtomicLongArray bottom = this.levels[0];
+          for(int w = firstBit >>> 6; w <= lastBit >>> 6; w++)
+          {
+              long mask = rangeMask(w, firstBit, lastBit);
+              while(true)
+              {
+                  long word = bottom.get(w);
+                  if((word & mask) == 0)
+                  {
+                      break;
+                  }
+                  int bit = Long.numberOfTrailingZeros(word & mask);
+                  long updated = word & ~(1L << bit);
+                  if(bottom.compareAndSet(w, word, updated))
+                  {
+                      this.freeCount.decrementAndGet();
+                      if(updated == 0)
+                      {
+                          clearSummary(1, w);
+                      }
+                      return (w << 6) + bit + 1;
+                  }
+              }
+          }
+          return -1;
+      }
+
+      // The bits of the word that fall between the first and last bit
+      private static long rangeMask(int w, int firstBit, int lastBit)
+      {
+          long mask = -1L;
+          if(w == firstBit >>> 6)
+          {
+              mask &= -1L << (firstBit & 63);
+          }
+          if(w == lastBit >>> 6)
+          {
+              mask &= -1L >>> (63 - (lastBit & 63));
+          }
+          return mask;
+      }
+
+      // Mark the seat as free. Returns false if the seat was already free
+      public boolean release(int seatNum)
+      {
+          int bit = seatNum - 1;
+          int w = bit >>> 6;
+          long mask = 1L << bit;
+          long previous = this.levels[0].getAndAccumulate(w, mask, (current, m) -> current | m);
+          if((previous & mask) != 0)
+          {
+              return false;
+          }
+          this.freeCount.incrementAndGet();
+          setSummary(1, w);
+          return true;
+      }
+
+      private void setSummary(int level, int child)
+      {
+          for(; level < this.levels.length; level++)
+          {
+              int w = child >>> 6;
+              this.levels[level].getAndAccumulate(w, 1L << child, (current, m) -> current | m);
+              child = w;
+          }
+      }
+
+      // Clear the summary bit of an empty word, unless a seat in it was freed in the meantime
+      private void clearSummary(int level, int child)
+      {
+          for(; level < this.levels.length; level++)
+          {
+              int w = child >>> 6;
+              long updated = this.levels[level].accumulateAndGet(w, ~(1L << child), (current, m) -> current & m);
+              if(this.levels[level - 1].get(child) != 0)
+              {
+                  // Lost a race with release, put the summary bits back
+                  setSummary(level, child);
+                  return;
+              }
+              if(updated != 0)
+              {
+                  return;
+              }
+              child = w;
+          }
+      }
+  }
+
+  // Storage for the seats of the theater. Seat numbers start at 1
+  private static interface SeatStore
+  {
+      int size();
+
+      int freeCount();
+
+      // Get the seat number booked against the name. Returns -1 if there is no reservation
+      int findByName(String name);
+
+      // Get the name the seat is booked against. Returns null if the seat is free
+      String getBookedBy(int seatNum);
+
+      boolean isBooked(int seatNum);
+
+      // Book the seat against the name. Returns false if the seat is taken or the name already has a seat
+      boolean book(int seatNum, String name);
+
+      // Book the lowest numbered free seat against the name. Returns -1 if no seat was booked
+      int bookFirstAvailable(String name);
+
+      // Free seats from one seat number to another
+      int freeCount(int from, int to);
+
+      // Book the lowest numbered free seat from one seat number to another. Returns -1 if no seat was booked
+      int bookFirstAvailable(String name, int from, int to);
+
+      // Free the seat booked against the name. Returns the seat number freed or -1 if there is no reservation
+      int free(String name);
+
+      // Digest of the booked seats from one seat number to another
+      long hash(int from, int to);
+
+      // Overwrite the seat with the state replicated from a peer. A null name frees the seat
+      default void set(int seatNum, String name)
+      {
+          String current = getBookedBy(seatNum);
+          if(name != null && name.equals(current))
+          {
+              return;
+          }
+          if(current != null)
+          {
+              free(current);
+          }
+          if(name != null)
+          {
+              // The name may still hold the seat it had before the change
+              free(name);
+              book(seatNum, name);
+          }
+      }
+  }
+
+  // Seat store with a Seat object per seat, an index from a name to the seat booked against it
+  // and a bitmap of the free seats
+  private static class ObjectSeatStore implements SeatStore
+  {
+      List<Seat> seats;
+      ConcurrentHashMap<String,Seat> seatsByName;
+      FreeSeatBitmap freeSeats;
+      SeatDigest digest;
+
+      public ObjectSeatStore(List<Seat> seats)
+      {
+          this.seats = seats;
+          this.seatsByName = new ConcurrentHashMap<>();
+          this.freeSeats = new FreeSeatBitmap(seats.size());
+          this.digest = new SeatDigest(seats.size());
+          // Index the seats that are already booked
+          for(Seat s: seats)
+          {
+              String bookedBy = s.getBookedBy();
+              if(bookedBy != null)
+              {
+                  this.seatsByName.put(bookedBy, s);
+                  this.freeSeats.claim(s.id);
+                  this.digest.booked(s.id, bookedBy);
+              }
+          }
+      }
+
+      public int size()
+      {
+          return this.seats.size();
+      }
+
+      public int freeCount()
+      {
+          return this.freeSeats.freeCount();
+      }
+
+      public int findByName(String name)
+      {
+          Seat s = this.seatsByName.get(name);
+          return s != null ? s.id : -1;
+      }
+
+      public String getBookedBy(int seatNum)
+      {
+          return this.seats.get(seatNum - 1).getBookedBy();
+      }
+
+      public boolean isBooked(int seatNum)
+      {
+          return this.freeSeats.isFree(seatNum) == false;
+      }
+
+      public boolean book(int seatNum, String name)
+      {
+          Seat s = this.seats.get(seatNum - 1);
+          // Claim the name first so two bookings against the same name can't both succeed
+          if(this.seatsByName.putIfAbsent(name, s) != null)
+          {
+              return false;
+          }
+          if(this.freeSeats.claim(seatNum) == false)
+          {
+              this.seatsByName.remove(name, s);
+              return false;
+          }
+          s.book(name);
+          this.digest.booked(seatNum, name);
+          return true;
+      }
+
+      public int bookFirstAvailable(String name)
+      {
+          return bookClaimed(this.freeSeats.claimFirst(), name);
+      }
+
+      public int freeCount(int from, int to)
+      {
+          return this.freeSeats.freeCount(from, to);
+      }
+
+      public int bookFirstAvailable(String name, int from, int to)
+      {
+          return bookClaimed(this.freeSeats.claimFirst(from, to), name);
+      }
+
+      // Book a seat just claimed in the bitmap, or give it back if the name already has one
+      private int bookClaimed(int seatNum, String name)
+      {
+          if(seatNum < 0)
+          {
+              return -1;
+          }
+          Seat s = this.seats.get(seatNum - 1);
+          if(this.seatsByName.putIfAbsent(name, s) != null)
+          {
+              this.freeSeats.release(seatNum);
+              return -1;
+          }
+          s.book(name);
+          this.digest.booked(seatNum, name);
+          return seatNum;
+      }
+
+      public int free(String name)
+      {
+          Seat s = this.seatsByName.remove(name);
+          if(s == null)
+          {
+              return -1;
+          }
+          s.freeSeat();
+          this.digest.freed(s.id, name);
+          this.freeSeats.release(s.id);
+          return s.id;
+      }
+
+      public long hash(int from, int to)
+      {
+          return this.digest.hash(this, from, to);
+      }
+  }
+
+  // A name interned by CompactSeatStore and the seat booked against it
+  private static class SeatOwner
+  {
+      int id;
+      String name;
+      // 0 when the name has no seat
+      AtomicInteger seatNum;
+
+      public SeatOwner(int id, String name)
+      {
+          this.id = id;
+          this.name = name;
+          this.seatNum = new AtomicInteger(0);
+      }
+  }
+
+  // Seat store backed by primitive arrays. A seat is a bit in the free seat bitmap and the int id of
+  // the name it is booked against, about 4 bytes per seat instead of a Seat object and its lock.
+  // Names are interned in a dictionary, so a name takes the same id every time it books
+  private static class CompactSeatStore implements SeatStore
+  {
+      int numSeats;
+      FreeSeatBitmap freeSeats;
+      // Id of the owner of each seat, 0 for a free seat. Indexed by seat number
+      AtomicIntegerArray owners;
+      ConcurrentHashMap<String,SeatOwner> ownersByName;
+      // Owners indexed by id. Replaced with a bigger copy when full
+      volatile SeatOwner[] ownersById;
+      Lock internLock;
+      SeatDigest digest;
+
+      public CompactSeatStore(int numSeats)
+      {
+          this.numSeats = numSeats;
+          this.digest = new SeatDigest(numSeats);
+          this.freeSeats = new FreeSeatBitmap(numSeats);
+          this.owners = new AtomicIntegerArray(numSeats + 1);
+          this.ownersByName = new ConcurrentHashMap<>();
+          // id 0 is reserved for free seats
+          this.ownersById = new SeatOwner[16];
+          this.internLock = new ReentrantLock();
+      }
+
+      private SeatOwner intern(String name)
+      {
+          SeatOwner owner = this.ownersByName.get(name);
+          if(owner != null)
+          {
+              return owner;
+          }
+          internLock.lock();
+          try
+          {
+              owner = this.ownersByName.get(name);
+              if(owner == null)
+              {
+                  int id = this.ownersByName.size() + 1;
+                  SeatOwner[] byId = this.ownersById;
+                  if(id >= byId.length)
+                  {
+                      byId = Arrays.copyOf(byId, byId.length * 2);
+                  }
+                  owner = new SeatOwner(id, name);
+                  byId[id] = owner;
+                  this.ownersById = byId;
+                  this.ownersByName.put(name, owner);
+              }
+          }finally
+          {
+              internLock.unlock();
+          }
+          return owner;
+      }
+
+      public int size()
+      {
+          return this.numSeats;
+      }
+
+      public int freeCount()
+      {
+          return this.freeSeats.freeCount();
+      }
+
+      public int findByName(String name)
+      {
+          SeatOwner owner = this.ownersByName.get(name);
+          if(owner == null)
+          {
+              return -1;
+          }
+          int seatNum = owner.seatNum.get();
+          return seatNum != 0 ? seatNum : -1;
+      }
+
+      public String getBookedBy(int seatNum)
+      {
+          int id = this.owners.get(seatNum);
+          if(id == 0)
+          {
+              return null;
+          }
+          return this.ownersById[id].name;
+      }
+
+      public boolean isBooked(int seatNum)
+      {
+          return this.freeSeats.isFree(seatNum) == false;
+      }
+
+      public boolean book(int seatNum, String name)
+      {
+          SeatOwner owner = intern(name);
+          // Claim the name first so two bookings against the same name can't both succeed
+          if(owner.seatNum.compareAndSet(0, seatNum) == false)
+          {
+              return false;
+          }
+          if(this.freeSeats.claim(seatNum) == false)
+          {
+              owner.seatNum.set(0);
+              return false;
+          }
+          this.owners.set(seatNum, owner.id);
+          this.digest.booked(seatNum, name);
+          return true;
+      }
+
+      public int bookFirstAvailable(String name)
+      {
+          return bookClaimed(this.freeSeats.claimFirst(), name);
+      }
+
+      public int freeCount(int from, int to)
+      {
+          return this.freeSeats.freeCount(from, to);
+      }
+
+      public int bookFirstAvailable(String name, int from, int to)
+      {
+          return bookClaimed(this.freeSeats.claimFirst(from, to), name);
+      }
+
+      // Book a seat just claimed in the bitmap, or give it back if the name already has one
+      private int bookClaimed(int seatNum, String name)
+      {
+          SeatOwner owner = intern(name);
+          if(seatNum < 0)
+          {
+              return -1;
+          }
+          if(owner.seatNum.compareAndSet(0, seatNum) == false)
+          {
+              this.freeSeats.release(seatNum);
+              return -1;
+          }
+          this.owners.set(seatNum, owner.id);
+          this.digest.booked(seatNum, name);
+          return seatNum;
+      }
+
+      public int free(String name)
+      {
+          SeatOwner owner = this.ownersByName.get(name);
+          if(owner == null)
+          {
+              return -1;
+          }
+          int seatNum = owner.seatNum.get();
+          if(seatNum == 0 || owner.seatNum.compareAndSet(seatNum, 0) == false)
+          {
+              return -1;
+          }
+          if(this.owners.compareAndSet(seatNum, owner.id, 0))
+          {
+              this.digest.freed(seatNum, name);
+          }
+          this.freeSeats.release(seatNum);
+          return seatNum;
+      }
+
+      public long hash(int from, int to)
+      {
+          return this.digest.hash(this, from, to);
+      }
+  }
+
+  // A message between peers. It goes over the wire as text, or in binary to peers that
+  // negotiated it during the handshake. Seats carry their number and the name booked against them
+  private static class PeerMessage
+  {
+      // Plain text reply to a peer message
+      static final String REPLY = "reply";
+      // Message types in the order of their binary type codes
+      static final String[] TYPES = {REPLY, UPDATE, DELTA, REQUEST, RELEASE, ACKNOWLEDGE, HANDSHAKE, RESYNC, VERSION, ESCROW, DIGEST};
+      // Binary type code of each message type, looked up for every message encoded
+      static final Map<String,Integer> TYPE_CODES = typeCodes();
+
+      private static Map<String,Integer> typeCodes()
+      {
+          Map<String,Integer> codes = new HashMap<>();
+          for(int i = 0; i < TYPES.length; i++)
+          {
+              codes.put(TYPES[i], i);
+          }
+          return codes;
+      }
+
+      String type;
+      int serverId;
+      int timestamp;
+      int baseVersion;
+      int version;
+      // Size of the theater when the message carries the full seat list, -1 otherwise
+      int numSeats = -1;
+      // Seats carried by the message in ascending order, with a null name for a free seat.
+      // A full seat list only carries the booked seats
+      int[] seatNums = new int[0];
+      String[] bookedBy = new String[0];
+      String text;
+      // Whether the sender reads binary messages
+      boolean binary;
+      // Whether the sender serves many messages over one connection
+      boolean channel;
+      // Whether the sender answers version queries
+      boolean reads;
+      // Partition of the seats a request, release or delta is for
+      int partition;
+      // Bytes of a binary message or characters of a text message as received, 0 if built here
+      int size;
+      // Version of each partition of the sender's seats, null with a single partition
+      int[] versions;
+
+      public PeerMessage(String type)
+      {
+          this.type = type;
+      }
+
+      public static boolean isPeerMessage(String type)
+      {
+          return UPDATE.equals(type) || DELTA.equals(type) || REQUEST.equals(type) || RELEASE.equals(type) || HANDSHAKE.equals(type)
+                  || VERSION.equals(type) || ESCROW.equals(type) || DIGEST.equals(type) || ACKNOWLEDGE.equals(type);
+      }
+
+      public static PeerMessage request(int serverId, int timestamp)
+      {
+          PeerMessage m = new PeerMessage(REQUEST);
+          m.serverId = serverId;
+          m.timestamp = timestamp;
+          return m;
+      }
+
+      public static PeerMessage release(int serverId)
+      {
+          PeerMessage m = new PeerMessage(RELEASE);
+          m.serverId = serverId;
+          return m;
+      }
+
+      public static PeerMessage handshake(int serverId, boolean binary)
+      {
+          PeerMessage m = new PeerMessage(HANDSHAKE);
+          m.serverId = serverId;
+          m.binary = binary;
+          m.channel = true;
+          m.reads = true;
+          return m;
+      }
+
+      // Asks a peer for its data version, the reply carries it
+      public static PeerMessage version(int serverId, int version)
+      {
+          PeerMessage m = new PeerMessage(VERSION);
+          m.serverId = serverId;
+          m.version = version;
+          m.versions = Server.partitions.getVersions();
+          return m;
+      }
+
+      // Acknowledges a request with our version of the seats but not the seats, the peer asks
+      // for the seats that differ if it's behind
+      public static PeerMessage acknowledge(int version)
+      {
+          PeerMessage m = new PeerMessage(ACKNOWLEDGE);
+          m.version = version;
+          m.versions = Server.partitions.getVersions();
+          return m;
+      }
+
+      // Asks a peer for the digests or the seats of ranges of seats
+      public static PeerMessage digest(String query, List<int[]> ranges)
+      {
+          PeerMessage m = new PeerMessage(DIGEST);
+          m.text = query + SeatDigest.rangesText(ranges);
+          return m;
+      }
+
+      // A message between servers in escrow mode, the text says what it's for
+      public static PeerMessage escrow(int serverId, String text)
+      {
+          PeerMessage m = new PeerMessage(ESCROW);
+          m.serverId = serverId;
+          m.text = text;
+          return m;
+      }
+
+      public static PeerMessage resync(int version)
+      {
+          PeerMessage m = new PeerMessage(RESYNC);
+          m.version = version;
+          return m;
+      }
+
+      public static PeerMessage reply(String text)
+      {
+          PeerMessage m = new PeerMessage(REPLY);
+          m.text = text;
+          return m;
+      }
+
+      // A message carrying the full seat list
+      public static PeerMessage withSeats(String type, int version, SeatStore seats)
+      {
+          PeerMessage m = new PeerMessage(type);
+          m.version = version;
+          m.versions = Server.partitions.getVersions();
+          m.numSeats = seats.size();
+          int capacity = Math.max(16, m.numSeats - seats.freeCount());
+          int[] seatNums = new int[capacity];
+          String[] bookedBy = new String[capacity];
+          int count = 0;
+          for(int i = 1; i <= m.numSeats; i++)
+          {
+              String name = seats.getBookedBy(i);
+              if(name != null)
+              {
+                  if(count == seatNums.length)
+                  {
+                      seatNums = Arrays.copyOf(seatNums, count * 2);
+                      bookedBy = Arrays.copyOf(bookedBy, count * 2);
+                  }
+                  seatNums[count] = i;
+                  bookedBy[count] = name;
+                  count++;
+              }
+          }
+          m.seatNums = Arrays.copyOf(seatNums, count);
+          m.bookedBy = Arrays.copyOf(bookedBy, count);
+          return m;
+      }
+
+      // A message carrying only the changed seats
+      public static PeerMessage delta(int baseVersion, int version, SeatStore seats, List<Integer> changedSeats)
+      {
+          PeerMessage m = new PeerMessage(DELTA);
+          m.baseVersion = baseVersion;
+          m.version = version;
+          int[] seatNums = new int[changedSeats.size()];
+          for(int i = 0; i < seatNums.length; i++)
+          {
+              seatNums[i] = changedSeats.get(i);
+          }
+          Arrays.sort(seatNums);
+          m.seatNums = seatNums;
+          m.bookedBy = new String[seatNums.length];
+          for(int i = 0; i < seatNums.length; i++)
+          {
+              m.bookedBy[i] = seats.getBookedBy(seatNums[i]);
+          }
+          return m;
+      }
+
+      // Build a seat store from the full seat list carried by the message
+      public SeatStore toSeatStore()
+      {
+          SeatStore seats = Server.newSeatStore(this.numSeats);
+          for(int i = 0; i < this.seatNums.length; i++)
+          {
+              if(this.bookedBy[i] != null)
+              {
+                  seats.book(this.seatNums[i], this.bookedBy[i]);
+              }
+          }
+          return seats;
+      }
+
+      public static StringBuilder appendSeatJson(StringBuilder json, int id, String bookedBy)
+      {
+          json.append("{\"id\":\"").append(id).append("\",");
+          json.append("\"bookedBy\":\"");
+          if(bookedBy == null)
+          {
+              json.append("null");
+          }
+          else
+          {
+              // Escape the quotes and backslashes of the name so it reads back as one json string
+              for(int i = 0; i < bookedBy.length(); i++)
+              {
+                  char c = bookedBy.charAt(i);
+                  if(c == '"' || c == '\\')
+                  {
+                      json.append('\\');
+                  }
+                  json.append(c);
+              }
+          }
+          json.append("\",");
+          json.append("\"booked\":").append(bookedBy != null ? "true" : "false").append('}');
+          return json;
+      }
+
+      // The seats as json. A full seat list lists the free seats too
+      public String getSeatsAsJson()
+      {
+          StringBuilder json = new StringBuilder("{\"seats\":[");
+          if(this.numSeats >= 0)
+          {
+              int next = 0;
+              for(int i = 1; i <= this.numSeats; i++)
+              {
+                  String name = null;
+                  if(next < this.seatNums.length && this.seatNums[next] == i)
+                  {
+                      name = this.bookedBy[next];
+                      next++;
+                  }
+                  if(i > 1)
+                  {
+                      json.append(',');
+                  }
+                  appendSeatJson(json, i, name);
+              }
+          }
+          else
+          {
+              for(int i = 0; i < this.seatNums.length; i++)
+              {
+                  if(i > 0)
+                  {
+                      json.append(',');
+                  }
+                  appendSeatJson(json, this.seatNums[i], this.bookedBy[i]);
+              }
+          }
+          json.append("]}");
+          return json.toString();
+      }
+
+      // Read the json string starting at the quote at, unescaping it into value. Returns the index
+      // after the closing quote
+      private static int readJsonString(String json, int at, StringBuilder value)
+      {
+          value.setLength(0);
+          at++;
+          while(json.charAt(at) != '"')
+          {
+              char c = json.charAt(at++);
+              if(c == '\\')
+              {
+                  c = json.charAt(at++);
+                  if(c == 'u')
+                  {
+                      c = (char) Integer.parseInt(json.substring(at, at + 4), 16);
+                      at += 4;
+                  }
+              }
+              value.append(c);
+          }
+          return at + 1;
+      }
+
+      // Parse the seats json in one pass over the text. Names are read as json strings, so commas,
+      // colons and escaped quotes in a name don't break the seats apart
+      private void parseSeatsJson(String json, boolean fullList)
+      {
+          int[] seatNums = new int[16];
+          String[] bookedBy = new String[16];
+          int count = 0;
+          int kept = 0;
+          StringBuilder value = new StringBuilder();
+          int at = json.indexOf('[') + 1;
+          while(at > 0 && at < json.length() && json.charAt(at) != ']')
+          {
+              if(json.charAt(at) != '{')
+              {
+                  // The comma or white space between seats
+                  at++;
+                  continue;
+              }
+              at++;
+              int id = 0;
+              String name = null;
+              boolean booked = false;
+              while(json.charAt(at) != '}')
+              {
+                  if(json.charAt(at) != '"')
+                  {
+                      // The comma or white space between fields
+                      at++;
+                      continue;
+                  }
+                  at = readJsonString(json, at, value);
+                  String key = value.toString();
+                  at = json.indexOf(':', at) + 1;
+                  while(Character.isWhitespace(json.charAt(at)))
+                  {
+                      at++;
+                  }
+                  String field;
+                  if(json.charAt(at) == '"')
+                  {
+                      at = readJsonString(json, at, value);
+                      field = value.toString();
+                  }
+                  else
+                  {
+                      int end = at;
+                      while(json.charAt(end) != ',' && json.charAt(end) != '}')
+                      {
+                          end++;
+                      }
+                      field = json.substring(at, end).trim();
+                      at = end;
+                  }
+                  if("id".equals(key))
+                  {
+                      id = Integer.parseInt(field);
+                  }
+                  else if("bookedBy".equals(key))
+                  {
+                      name = field;
+                  }
+                  else if("booked".equals(key))
+                  {
+                      booked = Boolean.parseBoolean(field);
+                  }
+              }
+              at++;
+              count++;
+              // A full seat list only keeps the booked seats
+              if(booked || fullList == false)
+              {
+                  if(kept == seatNums.length)
+                  {
+                      seatNums = Arrays.copyOf(seatNums, kept * 2);
+                      bookedBy = Arrays.copyOf(bookedBy, kept * 2);
+                  }
+                  seatNums[kept] = id;
+                  bookedBy[kept] = booked ? name : null;
+                  kept++;
+              }
+          }
+          this.numSeats = fullList ? count : -1;
+          this.seatNums = Arrays.copyOf(seatNums, kept);
+          this.bookedBy = Arrays.copyOf(bookedBy, kept);
+      }
+
+      public String toText()
+      {
+          if(REQUEST.equals(this.type))
+          {
+              return REQUEST + " " + this.serverId + " " + this.timestamp + " " + this.version + partitionText();
+          }
+          if(RELEASE.equals(this.type))
+          {
+              return RELEASE + " " + this.serverId + partitionText();
+          }
+          if(HANDSHAKE.equals(this.type))
+          {
+              String msg;
+              if(this.numSeats < 0 && this.baseVersion == 0)
+              {
+                  // No seats, just the sender id. The version of its seats follows after "at"
+                  msg = HANDSHAKE + " " + this.serverId;
+              }
+              else
+              {
+                  // The full seat list, or the seats changed since baseVersion
+                  msg = HANDSHAKE + " " + this.version + " " + getSeatsAsJson();
+              }
+              // Followed by what the sender supports
+              if(this.binary)
+              {
+                  msg += " " + BINARY;
+              }
+              if(this.channel)
+              {
+                  msg += " " + CHANNEL;
+              }
+              if(this.reads)
+              {
+                  msg += " " + READS;
+              }
+              msg += versionsText();
+              if(this.numSeats < 0 && this.baseVersion > 0)
+              {
+                  msg += " since " + this.baseVersion;
+              }
+              else if(this.numSeats < 0 && this.version > 0)
+              {
+                  // The version of the sender's seats
+                  msg += " at " + this.version;
+              }
+              return msg;
+          }
+          if(UPDATE.equals(this.type) || ACKNOWLEDGE.equals(this.type))
+          {
+              // An acknowledgement only carries the seats for peers from before digests
+              String msg = this.type + " " + this.version + (this.numSeats >= 0 ? " " + getSeatsAsJson() : "") + versionsText();
+              if(this.serverId > 0)
+              {
+                  // The pending request of the server acknowledging
+                  msg += " " + REQUEST + " " + this.serverId + " " + this.timestamp;
+              }
+              if(this.partition != 0)
+              {
+                  // The partition of a deferred Ricart-Agrawala acknowledgement
+                  msg += " partition " + this.partition;
+              }
+              return msg;
+          }
+          if(DELTA.equals(this.type))
+          {
+              return DELTA + " " + this.baseVersion + " " + this.version + " " + getSeatsAsJson() + partitionText();
+          }
+          if(RESYNC.equals(this.type))
+          {
+              return RESYNC + " " + this.version;
+          }
+          if(VERSION.equals(this.type))
+          {
+              return VERSION + " " + this.serverId + " " + this.version + versionsText();
+          }
+          if(ESCROW.equals(this.type))
+          {
+              return ESCROW + " " + this.serverId + " " + this.text;
+          }
+          if(DIGEST.equals(this.type))
+          {
+              return DIGEST + " " + this.text;
+          }
+          return this.text;
+      }
+
+      // The partition goes last and is left out for the first partition
+      private String partitionText()
+      {
+          return this.partition != 0 ? " " + this.partition : "";
+      }
+
+      // The partition versions go last as a comma separated list
+      private String versionsText()
+      {
+          if(this.versions == null)
+          {
+              return "";
+          }
+          StringBuilder text = new StringBuilder();
+          for(int v: this.versions)
+          {
+              text.append(text.length() == 0 ? " " : ",").append(v);
+          }
+          return text.toString();
+      }
+
+      private static int[] parseVersions(String token)
+      {
+          return Arrays.stream(token.split(",")).mapToInt(Integer::parseInt).toArray();
+      }
+
+      public static PeerMessage fromText(String msg)
+      {
+          String[] tokens = msg.trim().split("\\s+");
+          String type = tokens[0];
+          PeerMessage m = new PeerMessage(type);
+          if(REQUEST.equals(type))
+          {
+              m.serverId = Integer.parseInt(tokens[1]);
+              m.timestamp = Integer.parseInt(tokens[2]);
+              if(tokens.length > 3)
+              {
+                  m.version = Integer.parseInt(tokens[3]);
+              }
+              if(tokens.length > 4)
+              {
+                  m.partition = Integer.parseInt(tokens[4]);
+              }
+          }
+          else if(RELEASE.equals(type))
+          {
+              m.serverId = Integer.parseInt(tokens[1]);
+              if(tokens.length > 2)
+              {
+                  m.partition = Integer.parseInt(tokens[2]);
+              }
+          }
+          else if(HANDSHAKE.equals(type))
+          {
+              // A handshake reply carries the seats, a handshake from a peer coming up doesn't
+              boolean withSeats = tokens.length > 2 && tokens[2].startsWith("{");
+              if(withSeats)
+              {
+                  m.version = Integer.parseInt(tokens[1]);
+              }
+              else
+              {
+                  m.serverId = Integer.parseInt(tokens[1]);
+              }
+              for(int i = withSeats ? 3 : 2; i < tokens.length; i++)
+              {
+                  m.binary |= BINARY.equals(tokens[i]);
+                  m.channel |= CHANNEL.equals(tokens[i]);
+                  m.reads |= READS.equals(tokens[i]);
+                  if(tokens[i].contains(","))
+                  {
+                      m.versions = parseVersions(tokens[i]);
+                  }
+                  else if("since".equals(tokens[i]) && i + 1 < tokens.length)
+                  {
+                      m.baseVersion = Integer.parseInt(tokens[++i]);
+                  }
+                  else if("at".equals(tokens[i]) && i + 1 < tokens.length)
+                  {
+                      m.version = Integer.parseInt(tokens[++i]);
+                  }
+              }
+              if(withSeats)
+              {
+                  // Only the changed seats come with since
+                  m.parseSeatsJson(tokens[2], m.baseVersion == 0);
+              }
+          }
+          else if(UPDATE.equals(type) || ACKNOWLEDGE.equals(type))
+          {
+              m.version = Integer.parseInt(tokens[1]);
+              int next = 2;
+              if(tokens.length > 2 && tokens[2].startsWith("{"))
+              {
+                  m.parseSeatsJson(tokens[2], true);
+                  next = 3;
+              }
+              for(int i = next; i < tokens.length; i++)
+              {
+                  if(REQUEST.equals(tokens[i]) && i + 2 < tokens.length)
+                  {
+                      m.serverId = Integer.parseInt(tokens[i + 1]);
+                      m.timestamp = Integer.parseInt(tokens[i + 2]);
+                      i += 2;
+                  }
+                  else if("partition".equals(tokens[i]) && i + 1 < tokens.length)
+                  {
+                      m.partition = Integer.parseInt(tokens[++i]);
+                  }
+                  else
+                  {
+                      m.versions = parseVersions(tokens[i]);
+                  }
+              }
+          }
+          else if(DELTA.equals(type))
+          {
+              m.baseVersion = Integer.parseInt(tokens[1]);
+              m.version = Integer.parseInt(tokens[2]);
+              m.parseSeatsJson(tokens[3], false);
+              if(tokens.length > 4)
+              {
+                  m.partition = Integer.parseInt(tokens[4]);
+              }
+          }
+          else if(RESYNC.equals(type))
+          {
+              m.version = Integer.parseInt(tokens[1]);
+          }
+          else if(VERSION.equals(type))
+          {
+              m.serverId = Integer.parseInt(tokens[1]);
+              m.version = Integer.parseInt(tokens[2]);
+              if(tokens.length > 3)
+              {
+                  m.versions = parseVersions(tokens[3]);
+              }
+          }
+          else if(DIGEST.equals(type))
+          {
+              m.text = msg.trim().substring(DIGEST.length()).trim();
+          }
+          else if(ESCROW.equals(type))
+          {
+              String[] parts = msg.trim().split("\\s+", 3);
+              m.serverId = Integer.parseInt(parts[1]);
+              m.text = parts.length > 2 ? parts[2] : "";
+          }
+          else
+          {
+              m = reply(msg);
+          }
+          return m;
+      }
+  }
+
+  // Binary format of peer messages. A frame is a magic byte, the message type code, the length of
+  // the payload as a 4 byte int and the payload. Numbers in the payload are varints, names are sent once
+  // in a table of length prefixed UTF-8 strings and seats refer to them by their index in the table
+  private static class BinaryCodec
+  {
+      // Never the first byte of a text message
+      static final int MAGIC = 0xB5;
+
+      private static void writeVarint(ByteArrayOutputStream out, int value)
+      {
+          while((value & ~0x7F) != 0)
+          {
+              out.write((value & 0x7F) | 0x80);
+              value >>>= 7;
+          }
+          out.write(value);
+      }
+
+      private static void writeString(ByteArrayOutputStream out, String value)
+      {
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          writeVarint(out, bytes.length);
+          out.write(bytes, 0, bytes.length);
+      }
+
+      private static int readVarint(ByteBuffer in)
+      {
+          int value = 0;
+          for(int shift = 0; ; shift += 7)
+          {
+              int b = in.get();
+              value |= (b & 0x7F) << shift;
+              if((b & 0x80) == 0)
+              {
+                  return value;
+              }
+          }
+      }
+
+      private static String readString(ByteBuffer in)
+      {
+          int length = readVarint(in);
+          String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+          in.position(in.position() + length);
+          return value;
+      }
+
+      public static byte[] encode(PeerMessage m)
+      {
+          ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + m.seatNums.length * 3);
+          payload.write(MAGIC);
+          payload.write(PeerMessage.TYPE_CODES.get(m.type));
+          // Room for the length, filled in once the payload is written
+          for(int i = 0; i < 4; i++)
+          {
+              payload.write(0);
+          }
+          writeVarint(payload, m.serverId);
+          writeVarint(payload, m.timestamp);
+          writeVarint(payload, m.baseVersion);
+          writeVarint(payload, m.version);
+          writeVarint(payload, m.numSeats + 1);
+          writeVarint(payload, (m.binary ? 1 : 0) | (m.channel ? 2 : 0) | (m.reads ? 4 : 0));
+          // The name table, then each seat as the gap from the previous seat number and the
+          // index of its name plus one, 0 for a free seat
+          Map<String,Integer> nameIndex = new HashMap<>();
+          List<String> names = new ArrayList<>();
+          int[] owners = new int[m.seatNums.length];
+          for(int i = 0; i < m.seatNums.length; i++)
+          {
+              String name = m.bookedBy[i];
+              if(name != null)
+              {
+                  Integer index = nameIndex.get(name);
+                  if(index == null)
+                  {
+                      index = names.size();
+                      nameIndex.put(name, index);
+                      names.add(name);
+                  }
+                  owners[i] = index + 1;
+              }
+          }
+          writeVarint(payload, names.size());
+          for(String name: names)
+          {
+              writeString(payload, name);
+          }
+          writeVarint(payload, m.seatNums.length);
+          int previous = 0;
+          for(int i = 0; i < m.seatNums.length; i++)
+          {
+              writeVarint(payload, m.seatNums[i] - previous);
+              writeVarint(payload, owners[i]);
+              previous = m.seatNums[i];
+          }
+          if(m.text != null)
+          {
+              writeVarint(payload, 1);
+              writeString(payload, m.text);
+          }
+          else
+          {
+              writeVarint(payload, 0);
+          }
+          // The partition and the partition versions, left out when there's a single partition
+          // so the frame stays readable by servers from before partitions
+          if(m.partition != 0 || m.versions != null)
+          {
+              writeVarint(payload, m.partition);
+              int[] versions = m.versions != null ? m.versions : new int[0];
+              writeVarint(payload, versions.length);
+              for(int v: versions)
+              {
+                  writeVarint(payload, v);
+              }
+          }
+
+          byte[] frame = payload.toByteArray();
+          ByteBuffer.wrap(frame, 2, 4).putInt(frame.length - 6);
+          return frame;
+      }
+
+      // Read a frame from the stream, starting with its magic byte
+      public static PeerMessage read(InputStream stream) throws IOException
+      {
+          DataInputStream in = new DataInputStream(stream);
+          if(in.readUnsignedByte() != MAGIC)
+          {
+              throw new IOException("Not a binary peer message");
+          }
+          int typeCode = in.readUnsignedByte();
+          byte[] payload = new byte[in.readInt()];
+          in.readFully(payload);
+          PeerMessage m = decode(PeerMessage.TYPES[typeCode], ByteBuffer.wrap(payload));
+          m.size = payload.length + 6;
+          return m;
+      }
+
+      private static PeerMessage decode(String type, ByteBuffer in)
+      {
+          PeerMessage m = new PeerMessage(type);
+          m.serverId = readVarint(in);
+          m.timestamp = readVarint(in);
+          m.baseVersion = readVarint(in);
+          m.version = readVarint(in);
+          m.numSeats = readVarint(in) - 1;
+          int flags = readVarint(in);
+          m.binary = (flags & 1) != 0;
+          m.channel = (flags & 2) != 0;
+          m.reads = (flags & 4) != 0;
+          String[] names = new String[readVarint(in)];
+          for(int i = 0; i < names.length; i++)
+          {
+              names[i] = readString(in);
+          }
+          int count = readVarint(in);
+          m.seatNums = new int[count];
+          m.bookedBy = new String[count];
+          int previous = 0;
+          for(int i = 0; i < count; i++)
+          {
+              previous += readVarint(in);
+              m.seatNums[i] = previous;
+              int owner = readVarint(in);
+              m.bookedBy[i] = owner != 0 ? names[owner - 1] : null;
+          }
+          if(readVarint(in) == 1)
+          {
+              m.text = readString(in);
+          }
+          if(in.hasRemaining())
+          {
+              m.partition = readVarint(in);
+              int numVersions = readVarint(in);
+              if(numVersions > 0)
+              {
+                  m.versions = new int[numVersions];
+                  for(int i = 0; i < numVersions; i++)
+                  {
+                      m.versions[i] = readVarint(in);
+                  }
+              }
+          }
+          return m;
+      }
+  }
+
+  // A long lived connection to a peer shared by every thread messaging it. Each message is framed
+  // with a request id and its length so replies are matched to their request whatever order they
+  // come back in. A broken connection is reopened by the next message sent
+  private static class PeerConnection
+  {
+      // First byte sent on a connection that carries many framed messages
+      static final int CHANNEL_MAGIC = 0xB6;
+
+      Peer peer;
+      Socket socket;
+      DataOutputStream output;
+      Lock connectionLock = new ReentrantLock();
+      AtomicInteger nextRequestId = new AtomicInteger(0);
+      // Requests waiting on a reply on the current connection, by request id. Every connection has
+      // its own, so one that closes only fails the requests sent on it
+      ConcurrentHashMap<Integer,CompletableFuture<byte[]>> pending;
+
+      public PeerConnection(Peer peer)
+      {
+          this.peer = peer;
+      }
+
+      // Send the message and wait for the reply
+      public PeerMessage send(PeerMessage msg) throws Exception
+      {
+          try
+          {
+              return sendAsync(msg).join();
+          }catch(CompletionException e)
+          {
+              throw (Exception) e.getCause();
+          }
+      }
+
+      // Send the message. The reply completes the returned future without tying up a thread
+      public CompletableFuture<PeerMessage> sendAsync(PeerMessage msg)
+      {
+          byte[] payload = this.peer.binary ? BinaryCodec.encode(msg) : msg.toText().getBytes(StandardCharsets.UTF_8);
+          int requestId = this.nextRequestId.incrementAndGet();
+          CompletableFuture<byte[]> reply = new CompletableFuture<>();
+          try
+          {
+              write(requestId, payload, reply);
+          }catch(IOException e)
+          {
+              // Not sent again, part of it may have reached the peer. The callers ask again
+              // where the peer can tell a repeat
+              reply.completeExceptionally(e);
+          }
+          return reply.thenApply(PeerConnection::decode);
+      }
+
+      private static PeerMessage decode(byte[] response)
+      {
+          if(response.length > 0 && (response[0] & 0xFF) == BinaryCodec.MAGIC)
+          {
+              try
+              {
+                  return BinaryCodec.read(new ByteArrayInputStream(response));
+              }catch(IOException e)
+              {
+                  throw new CompletionException(e);
+              }
+          }
+          return PeerMessage.fromText(new String(response, StandardCharsets.UTF_8));
+      }
+
+      private void write(int requestId, byte[] payload, CompletableFuture<byte[]> reply) throws IOException
+      {
+          connectionLock.lock();
+          try
+          {
+              if(this.socket == null)
+              {
+                  open();
+              }
+              ConcurrentHashMap<Integer,CompletableFuture<byte[]>> sentOn = this.pending;
+              sentOn.put(requestId, reply);
+              reply.whenComplete((response, e) -> sentOn.remove(requestId));
+              try
+              {
+                  this.output.writeInt(requestId);
+                  this.output.writeInt(payload.length);
+                  this.output.write(payload);
+                  this.output.flush();
+              }catch(IOException e)
+              {
+                  // The next message opens a new connection
+                  close();
+                  throw e;
+              }
+          }finally
+          {
+              connectionLock.unlock();
+          }
+      }
+
+      private void open() throws IOException
+      {
+          Socket s = Server.connect(this.peer.ipAddress, this.peer.port);
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+          out.write(CHANNEL_MAGIC);
+          DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+          ConcurrentHashMap<Integer,CompletableFuture<byte[]>> replies = new ConcurrentHashMap<>();
+          this.socket = s;
+          this.output = out;
+          this.pending = replies;
+          Server.startWorkerThread(() -> readReplies(s, in, replies), "peer-" + this.peer.id + "-reader", true);
+      }
+
+      // Hand each reply to the request waiting on it until the connection closes
+      private void readReplies(Socket s, DataInputStream in, ConcurrentHashMap<Integer,CompletableFuture<byte[]>> replies)
+      {
+          try
+          {
+              while(true)
+              {
+                  int requestId = in.readInt();
+                  byte[] response = new byte[in.readInt()];
+                  in.readFully(response);
+                  CompletableFuture<byte[]> reply = replies.get(requestId);
+                  if(reply != null)
+                  {
+                      reply.complete(response);
+                  }
+              }
+          }catch(IOException e)
+          {
+              // The peer closed the connection or went down
+          }
+          connectionLock.lock();
+          try
+          {
+              if(this.socket == s)
+              {
+                  close();
+              }
+          }finally
+          {
+              connectionLock.unlock();
+          }
+          // Fail whatever was still waiting on this connection, not what went out on a newer one
+          IOException closed = new IOException("Connection to " + this.peer + " closed");
+          for(CompletableFuture<byte[]> reply: replies.values())
+          {
+              reply.completeExceptionally(closed);
+          }
+      }
+
+      // Close the connection, the next message sent opens a new one
+      public void close()
+      {
+          connectionLock.lock();
+          try
+          {
+              if(this.socket != null)
+              {
+                  try
+                  {
+                      this.socket.close();
+                  }catch(IOException e)
+                  {
+                      System.err.println("Unable to close connection to peer");
+                      e.printStackTrace();
+                  }
+              }
+              this.socket = null;
+              this.output = null;
+          }finally
+          {
+              connectionLock.unlock();
+          }
+      }
+  }
+
+  private static class MessagePeerThead implements Callable<PeerMessage>
+  {
+      Peer p;
+      PeerMessage msg;
+      public MessagePeerThead(Peer p, PeerMessage msgToPeer)
+      {
+          this.p = p;
+          this.msg = msgToPeer;
+      }
+
+
+      private String sendCmdOverTcp(String command, String hostAddress, int port)
+      {
+          // Send the command over TCP
+          Socket tcpSocket = null;
+          String response = "";
+          try
+          {
+              // Get the socket
+              tcpSocket = Server.connect(hostAddress, port);
+              PrintWriter outputWriter = new PrintWriter(tcpSocket.getOutputStream(), true);
+              BufferedReader inputReader = new BufferedReader(new InputStreamReader(tcpSocket.getInputStream()));
+              // Write the purchase message
+              outputWriter.write(command + "\n");
+              outputWriter.flush();
+
+                                  
+              while(true)
+              {
+                  String input = inputReader.readLine();
+                  if (input == null)
+                  {
+                      break;
+                  }
+                  response += input;
+              }
+
+          }catch(Exception e)
+          {
+              return null;
+          }finally
+          {
+              if (tcpSocket != null)
+              {
+                  try
+                  {
+                      tcpSocket.close();
+                  }catch(Exception e)
+                  {
+                      System.err.println("Unable to close socket");
+                      e.printStackTrace();
+                  }
+              }
+
+          }
+          return response;
+      }
+  
+
+      private PeerMessage sendBinaryOverTcp(PeerMessage msg, String hostAddress, int port)
+      {
+          Socket tcpSocket = null;
+          try
+          {
+              tcpSocket = Server.connect(hostAddress, port);
+              OutputStream output = tcpSocket.getOutputStream();
+              output.write(BinaryCodec.encode(msg));
+              output.flush();
+              // The peer answers a binary message with a binary message
+              return BinaryCodec.read(new BufferedInputStream(tcpSocket.getInputStream()));
+          }catch(Exception e)
+          {
+              return null;
+          }finally
+          {
+              if (tcpSocket != null)
+              {
+                  try
+                  {
+                      tcpSocket.close();
+                  }catch(Exception e)
+                  {
+                      System.err.println("Unable to close socket");
+                      e.printStackTrace();
+                  }
+              }
+          }
+      }
+
+      public PeerMessage call() throws InvalidParameterException
+      {  
+          String hostAddress =  this.p.ipAddress;
+          int port = this.p.port;
+          // Use the long lived connection to peers that keep one open
+          if(this.p.channel)
+          {
+              try
+              {
+                  return this.p.connection.send(this.msg);
+              }catch(Exception e)
+              {
+                  return null;
+              }
+          }
+          // Send the message to the peer in the format it reads
+          if(this.p.binary)
+          {
+              return sendBinaryOverTcp(this.msg, hostAddress, port);
+          }
+          String response = sendCmdOverTcp(this.msg.toText(), hostAddress, port);
+          if(response == null)
+          {
+              return null;
+          }
+          return PeerMessage.fromText(response);
+      }  
+  }
+
+  // Sends messages to the peers for the whole server. Sends run on one pool of threads sized to the
+  // number of peers, each send returns a future for the peer's reply and callers pick how many
+  // replies they wait for
+  private static class PeerMessenger
+  {
+      List<Peer> peers;
+      ExecutorService executor;
+
+      public PeerMessenger(List<Peer> peers)
+      {
+          this.peers = peers;
+          // Threads for each peer, a send only holds one while writing to a long lived
+          // connection but for the whole exchange with a peer that takes one message per socket.
+          // With virtual threads every send gets its own
+          this.executor = Server.newWorkerExecutor(() ->
+          {
+              int numThreads = Math.max(1, peers.size() - 1) * Server.getIntOption("peerThreads", 2);
+              ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                      r -> Server.newWorkerThread(r, "peer-messenger", true));
+              pool.allowCoreThreadTimeOut(true);
+              return pool;
+          });
+      }
+
+      // Every peer except this server
+      public List<Peer> otherPeers()
+      {
+          List<Peer> others = new ArrayList<>();
+          String self = Server.ipAddress + ":" + Server.port;
+          for (Peer p: this.peers)
+          {
+              if(self.equals(p.toString()) == false)
+              {
+                  others.add(p);
+              }
+          }
+          return others;
+      }
+
+      // Number of replies from peers that make a majority of the servers together with this one
+      public int quorum()
+      {
+          return this.peers.size() / 2;
+      }
+
+      // Send the message to the peer. The future completes with null if the peer couldn't be reached
+      public CompletableFuture<PeerMessage> send(Peer p, PeerMessage msg)
+      {
+          CompletableFuture<PeerMessage> reply;
+          if(p.channel)
+          {
+              reply = CompletableFuture.supplyAsync(() -> p.connection.sendAsync(msg), this.executor)
+                      .thenCompose(response -> response)
+                      .exceptionally(e -> null);
+          }
+          else
+          {
+              MessagePeerThead worker = new MessagePeerThead(p, msg);
+              reply = CompletableFuture.supplyAsync(() -> worker.call(), this.executor);
+          }
+          // Track the message until the peer answers, or is suspected and the message given up on
+          long start = System.nanoTime();
+          p.inFlight.add(reply);
+          reply.whenComplete((response, e) ->
+          {
+              p.inFlight.remove(reply);
+              if(response != null)
+              {
+                  p.lastHeard = System.currentTimeMillis();
+                  p.roundTrip.recordSince(start);
+              }
+          });
+          return reply;
+      }
+
+      // Give up on the messages waiting on a peer, they complete with no reply
+      public void peerFailed(Peer p)
+      {
+          for (CompletableFuture<PeerMessage> reply: p.inFlight)
+          {
+              reply.complete(null);
+          }
+      }
+
+      // Send the message to every other peer not suspected to be down
+      public Map<Peer,CompletableFuture<PeerMessage>> sendToPeers(PeerMessage msg)
+      {
+          Map<Peer,CompletableFuture<PeerMessage>> replies = new LinkedHashMap<>();
+          for (Peer p: otherPeers())
+          {
+              if(p.suspected == false)
+              {
+                  replies.put(p, send(p, msg));
+              }
+          }
+          return replies;
+      }
+
+      // Wait for every peer to reply or fail
+      public Map<Peer,PeerMessage> awaitAll(Map<Peer,CompletableFuture<PeerMessage>> replies, long timeoutMillis) throws InterruptedException
+      {
+          return await(replies, replies.size(), timeoutMillis);
+      }
+
+      // Wait for enough replies to make a majority of the servers
+      public Map<Peer,PeerMessage> awaitQuorum(Map<Peer,CompletableFuture<PeerMessage>> replies, long timeoutMillis) throws InterruptedException
+      {
+          return await(replies, quorum(), timeoutMillis);
+      }
+
+      // Wait until count peers replied, every peer replied or failed, or the timeout ran out.
+      // A timeout of 0 waits as long as it takes. Returns the replies that came in by peer
+      public Map<Peer,PeerMessage> await(Map<Peer,CompletableFuture<PeerMessage>> replies, int count, long timeoutMillis) throws InterruptedException
+      {
+          int needed = Math.min(count, replies.size());
+          CompletableFuture<Void> enough = new CompletableFuture<>();
+          AtomicInteger received = new AtomicInteger(0);
+          AtomicInteger finished = new AtomicInteger(0);
+          if(needed <= 0)
+          {
+              enough.complete(null);
+          }
+          for (CompletableFuture<PeerMessage> reply: replies.values())
+          {
+              reply.whenComplete((response, e) ->
+              {
+                  if(response != null && received.incrementAndGet() >= needed)
+                  {
+                      enough.complete(null);
+                  }
+                  if(finished.incrementAndGet() == replies.size())
+                  {
+                      enough.complete(null);
+                  }
+              });
+          }
+          try
+          {
+              if(timeoutMillis > 0)
+              {
+                  enough.get(timeoutMillis, TimeUnit.MILLISECONDS);
+              }
+              else
+              {
+                  enough.get();
+              }
+          }catch(TimeoutException | ExecutionException e)
+          {
+              // Return whatever came in
+          }
+          Map<Peer,PeerMessage> responses = new LinkedHashMap<>();
+          for (Map.Entry<Peer,CompletableFuture<PeerMessage>> entry: replies.entrySet())
+          {
+              PeerMessage response = entry.getValue().getNow(null);
+              if(response != null)
+              {
+                  responses.put(entry.getKey(), response);
+              }
+          }
+          return responses;
+      }
+
+      // How busy the messaging threads are
+      public String getUtilization()
+      {
+          if(this.executor instanceof ThreadPoolExecutor == false)
+          {
+              return "peer messenger threads: a virtual thread per message";
+          }
+          ThreadPoolExecutor executor = (ThreadPoolExecutor) this.executor;
+          return "peer messenger threads: " + executor.getActiveCount() + " active, "
+                  + executor.getPoolSize() + " started, " + executor.getMaximumPoolSize() + " max, "
+                  + executor.getQueue().size() + " queued, " + executor.getCompletedTaskCount() + " completed";
+      }
+  }
+
+  private static abstract class ClientWorkerThread implements  Runnable
+  {
+      // First byte of a client session, a connection that carries many commands. Commands and
+      // replies are framed by their length and replies come back in the order of the commands
+      static final int SESSION_MAGIC = 0xB7;
+
+      ServerThread serverThread;
+      Socket s;
+      // Seats changed by this worker that haven't been sent to the peers yet
+      List<Integer> changedSeats;
+      // The data version before the first of the changed seats
+      int baseVersion;
+      // With more than one partition, the version of each changed partition before its first change
+      Map<Integer,Integer> partitionBaseVersions = new HashMap<>();
+      // The request this worker is waiting on to enter the CS
+      Request pendingRequest;
+      // Partitions whose CS this worker is in
+      int[] heldPartitions = new int[0];
+      // The flight recorder events of the partitions whose CS this worker is in
+      Map<Integer,CsHeldEvent> heldEvents = new HashMap<>();
+      // Set by a command that needs a partition it wasn't given, it runs again in every partition
+      boolean needsAllPartitions;
+
+      public ClientWorkerThread(ServerThread thread,Socket s)
+      {
+          this.s = s;
+          this.serverThread = thread;
+          this.changedSeats = new ArrayList<>();
+      }
+
+
+      private String reserve(String[] tokens)
+      {
+          if(tokens == null || tokens.length < 2 )
+          {
+              return null;
+          }
+          String name = tokens[1];
+          SeatStore seats = this.serverThread.getSeats();
+          // Check for a reservation against this name
+          if(seats.findByName(name) >= 0)
+          {
+              return "Seat already booked against the name provided";
+          }
+          if(seats.freeCount() == 0)
+          {
+              return "Sold out - No seat available";
+          }
+          // Book the first free seat
+          int seatNum = bookFirstAvailable(seats, name);
+          if(seatNum >= 0)
+          {
+              seatChanged(seatNum);
+              return "Seat assigned to you is " + seatNum;
+          }
+          if(seats.findByName(name) >= 0)
+          {
+              return "Seat already booked against the name provided";
+          }
+          if(seats.freeCount() > 0 && holdsAllPartitions() == false)
+          {
+              // The free seats are in partitions we don't hold
+              this.needsAllPartitions = true;
+              return null;
+          }
+          return "Sold out - No seat available";
+      }
+
+      private String bookSeat(String[] tokens)
+      {
+          if(tokens == null || tokens.length < 3 )
+          {
+              return null;
+          }
+          String name = tokens[1];
+          int seatNum = Integer.parseInt(tokens[2]);
+          SeatStore seats = this.serverThread.getSeats();
+          
+          if(seatNum > seats.size() || seatNum < 1)
+          {
+              return seatNum + " does not exist";
+          }
+          
+          if(seats.isBooked(seatNum) == false)
+          {
+              if(seats.findByName(name) >= 0)
+              {
+                return "Seat " + seatNum + " already booked against the name provided";
+              }
+              if(seats.book(seatNum, name))
+              {
+                seatChanged(seatNum);
+                return "Seat assigned to you is " + seatNum;
+              }
+          }
+
+          return "Seat " + seatNum + " is not available";
+      }
+
+      private String search(String[] tokens)
+      {
+          if(tokens == null || tokens.length < 2 )
+          {
+              return null;
+          }
+          String name = tokens[1];
+          int seatNum = this.serverThread.getSeats().findByName(name);
+          if(seatNum >= 0)
+          {
+              return "" + seatNum;
+          }
+          return null;
+      }
+
+      // Book the first free seat in the partitions we hold
+      private int bookFirstAvailable(SeatStore seats, String name)
+      {
+          if(holdsAllPartitions())
+          {
+              return seats.bookFirstAvailable(name);
+          }
+          SeatPartitions partitions = Server.partitions;
+          for (int p: this.heldPartitions)
+          {
+              int seatNum = seats.bookFirstAvailable(name, partitions.first(p), partitions.last(p));
+              if(seatNum >= 0)
+              {
+                  return seatNum;
+              }
+          }
+          return -1;
+      }
+
+      private boolean holdsAllPartitions()
+      {
+          return this.heldPartitions.length == Server.partitions.count;
+      }
+
+      private boolean holdsPartition(int partition)
+      {
+          return Arrays.binarySearch(this.heldPartitions, partition) >= 0;
+      }
+
+      // The partitions a client command has to enter the CS of
+      protected int[] partitionsFor(String msg)
+      {
+          SeatPartitions partitions = Server.partitions;
+          String[] tokens = msg.trim().split("\\s+");
+          if(partitions.count == 1 || tokens.length < 2 || BATCH.equals(tokens[0]))
+          {
+              return partitions.all;
+          }
+          String name = tokens[1];
+          int home = partitions.ofName(name);
+          SeatStore seats = this.serverThread.getSeats();
+          if(BOOK_SEAT.equals(tokens[0]) && tokens.length >= 3)
+          {
+              try
+              {
+                  return partitions.of(home, partitions.ofSeat(Integer.parseInt(tokens[2])));
+              }catch(NumberFormatException e)
+              {
+                  return partitions.of(home);
+              }
+          }
+          if(DELETE.equals(tokens[0]))
+          {
+              int seatNum = seats.findByName(name);
+              return seatNum >= 0 ? partitions.of(home, partitions.ofSeat(seatNum)) : partitions.of(home);
+          }
+          if(RESERVE.equals(tokens[0]) && seats.freeCount(partitions.first(home), partitions.last(home)) == 0)
+          {
+              // Look for a free seat everywhere
+              return partitions.all;
+          }
+          return partitions.of(home);
+      }
+
+      // Enter the CS of every partition, in ascending order
+      protected void enterCS(int[] partitions)
+      {
+          long start = System.nanoTime();
+          for (int p: partitions)
+          {
+              Server.partitions.entries[p].lock();
+              sendRequest(p);
+              waitToEnter(p);
+          }
+          csWaitLatency.recordSince(start);
+          this.heldPartitions = partitions;
+      }
+
+      // Send the changes to the peers and leave the CS of the partitions
+      protected void leaveCS()
+      {
+          updatePeers();
+          for (int i = this.heldPartitions.length - 1; i >= 0; i--)
+          {
+              int p = this.heldPartitions[i];
+              sendRelease(p);
+              Server.partitions.entries[p].unlock();
+          }
+          this.heldPartitions = new int[0];
+      }
+
+      // Run a client command in the CS of the partitions it needs. A command that turned out to
+      // need other partitions runs again in all of them
+      protected String runInCS(String msg)
+      {
+          this.needsAllPartitions = false;
+          String response = runInCS(partitionsFor(msg), msg);
+          if(this.needsAllPartitions)
+          {
+              this.needsAllPartitions = false;
+              response = runInCS(Server.partitions.all, msg);
+          }
+          return response;
+      }
+
+      // Run the command in the CS of the partitions. The CS is left even if the command fails,
+      // otherwise the peers would wait on our release forever
+      private String runInCS(int[] partitions, String msg)
+      {
+          enterCS(partitions);
+          try
+          {
+              return runCommand(msg);
+          }catch(RuntimeException e)
+          {
+              System.err.println("Unable to run command " + msg);
+              e.printStackTrace();
+              return "Unable to run command " + msg;
+          }finally
+          {
+              leaveCS();
+          }
+      }
+
+      private String delete(String[] tokens)
+      {
+          if(tokens == null || tokens.length < 2 )
+          {
+              return null;
+          }
+          String name = tokens[1];
+          int booked = this.serverThread.getSeats().findByName(name);
+          if(booked >= 0 && holdsPartition(Server.partitions.ofSeat(booked)) == false)
+          {
+              // The seat moved to a partition we don't hold since we picked the partitions
+              this.needsAllPartitions = true;
+              return null;
+          }
+          int seatNum = this.serverThread.getSeats().free(name);
+          if(seatNum >= 0)
+          {
+              seatChanged(seatNum);
+              return "" + seatNum;
+          }
+          return "No reservation found for " + name;
+      }
+
+      private static boolean isClientCommand(String type)
+      {
+          return RESERVE.equals(type) || BOOK_SEAT.equals(type) || SEARCH.equals(type) || DELETE.equals(type) || BATCH.equals(type);
+      }
+
+      // Run a client command. The caller holds the CS
+      protected String runCommand(String msg)
+      {
+          String[] tokens = msg.trim().split("\\s+");
+          if(BATCH.equals(tokens[0]))
+          {
+              return batch(msg);
+          }
+          return runOperation(tokens);
+      }
+
+      // Run a single reserve, bookSeat, search or delete. Returns null if the operation isn't valid
+      private String runOperation(String[] tokens)
+      {
+          long start = System.nanoTime();
+          try
+          {
+              return runOperationNow(tokens);
+          }finally
+          {
+              operationLatency.recordSince(start);
+          }
+      }
+
+      private String runOperationNow(String[] tokens)
+      {
+          if(RESERVE.equals(tokens[0]))
+          {
+              return reserve(tokens);
+          }
+          else if(BOOK_SEAT.equals(tokens[0]))
+          {
+              return bookSeat(tokens);
+          }
+          else if(SEARCH.equals(tokens[0]))
+          {
+              String response = search(tokens);
+              if(response == null && tokens.length >= 2)
+              {
+                  response = "No reservation found for " + tokens[1];
+              }
+              return response;
+          }
+          else if(DELETE.equals(tokens[0]))
+          {
+              return delete(tokens);
+          }
+          return null;
+      }
+
+      // Run the operations of a batch in order. The caller holds the CS for the whole batch.
+      // Returns the result of each operation on its own line
+      private String batch(String msg)
+      {
+          String body = msg.trim().substring(BATCH.length());
+          StringBuilder results = new StringBuilder();
+          for (String op: body.split(BATCH_SEPARATOR))
+          {
+              String[] tokens = op.trim().split("\\s+");
+              if(tokens[0].isEmpty())
+              {
+                  continue;
+              }
+              String result;
+              try
+              {
+                  result = runOperation(tokens);
+              }catch(NumberFormatException e)
+              {
+                  result = "Invalid seat number " + tokens[2];
+              }
+              if(result == null)
+              {
+                  result = "Invalid command: " + op.trim();
+              }
+              if(results.length() > 0)
+              {
+                  results.append('\n');
+              }
+              results.append(result);
+          }
+          return results.toString();
+      }
+
+      // Replace our seats with the full seat list from a peer
+      private PeerMessage update(PeerMessage msg)
+      {
+          UpdateAppliedEvent event = beginUpdate(msg);
+          this.serverThread.setSeats(msg);
+          event.commit();
+          return PeerMessage.reply("Seats updated successfully");
+      }
+
+      // Apply a delta from a peer in place. Answer with a resync if we missed an earlier version
+      private PeerMessage delta(PeerMessage msg)
+      {
+          UpdateAppliedEvent event = beginUpdate(msg);
+          boolean applied = this.serverThread.applyDelta(msg);
+          event.commit();
+          if(applied == false)
+          {
+              return PeerMessage.resync(dataVersion.get());
+          }
+          return PeerMessage.reply("Seats updated successfully");
+      }
+
+      private UpdateAppliedEvent beginUpdate(PeerMessage msg)
+      {
+          UpdateAppliedEvent event = new UpdateAppliedEvent();
+          event.begin();
+          event.serverId = Server.serverId;
+          event.timestamp = logicalClock.get();
+          event.partition = msg.partition;
+          event.version = msg.version;
+          event.seats = msg.seatNums.length;
+          event.bytes = msg.size;
+          return event;
+      }
+
+      // Remember a seat changed by this worker so only the changed seats are sent to the peers
+      private void seatChanged(int seatNum)
+      {
+          // Upddate the version of the data since we made a modification
+          int version = dataVersion.getAndIncrement();
+          if(this.changedSeats.isEmpty())
+          {
+              this.baseVersion = version;
+          }
+          this.changedSeats.add(seatNum);
+          SeatPartitions partitions = Server.partitions;
+          if(partitions.count > 1)
+          {
+              int p = partitions.ofSeat(seatNum);
+              this.partitionBaseVersions.putIfAbsent(p, partitions.versions.getAndIncrement(p));
+          }
+      }
+
+      // Send the seats changed since the last update to every peer
+      protected String updatePeers()
+      {
+          if(this.changedSeats.isEmpty())
+          {
+              return "No changes to send to peers";
+          }
+          SeatStore seats = this.serverThread.getSeats();
+          int version = dataVersion.get();
+          // Send the version the changes apply to and the version they bring the peers to
+          List<PeerMessage> msgs = new ArrayList<>();
+          SeatPartitions partitions = Server.partitions;
+          if(partitions.count == 1)
+          {
+              msgs.add(PeerMessage.delta(this.baseVersion, version, seats, this.changedSeats));
+          }
+          else
+          {
+              // A delta for each partition, versioned by the partition's version
+              for(Map.Entry<Integer,Integer> base: this.partitionBaseVersions.entrySet())
+              {
+                  int p = base.getKey();
+                  List<Integer> changed = new ArrayList<>();
+                  for(int seatNum: this.changedSeats)
+                  {
+                      if(partitions.ofSeat(seatNum) == p)
+                      {
+                          changed.add(seatNum);
+                      }
+                  }
+                  PeerMessage msg = PeerMessage.delta(base.getValue(), partitions.versions.get(p), seats, changed);
+                  msg.partition = p;
+                  msgs.add(msg);
+              }
+              this.partitionBaseVersions.clear();
+          }
+          this.changedSeats.clear();
+          // Write the changes to our log while the peers apply them
+          List<CompletableFuture<Void>> logged = new ArrayList<>();
+          for(PeerMessage msg: msgs)
+          {
+              logged.add(Server.logSeats(LogRecord.delta(msg)));
+          }
+          long start = System.nanoTime();
+          try
+          {
+              for(PeerMessage msg: msgs)
+              {
+                  this.serverThread.messagePeers(msg);
+              }
+          }catch(InterruptedException e)
+          {
+              e.printStackTrace();
+              return "Unable to update peer's seat list";
+          }finally
+          {
+              updatePeersLatency.recordSince(start);
+          }
+          try
+          {
+              CompletableFuture.allOf(logged.toArray(new CompletableFuture<?>[0])).join();
+          }catch(CompletionException e)
+          {
+              return "Unable to write the seat log";
+          }
+          
+          return "Peers received updated seat list";
+      }
+
+      // Parse a request from peers
+      private PeerMessage request(PeerMessage msg)
+      {
+          RequestReceivedEvent event = new RequestReceivedEvent();
+          event.begin();
+          event.serverId = msg.serverId;
+          event.timestamp = msg.timestamp;
+          event.partition = msg.partition;
+          try
+          {
+              return answerRequest(msg);
+          }finally
+          {
+              event.commit();
+          }
+      }
+
+      private PeerMessage answerRequest(PeerMessage msg)
+      {
+          SeatPartitions partitions = Server.partitions;
+          if(partitions.ricartAgrawala != null)
+          {
+              // Reply once we don't need the CS before the peer, when we leave it if we do
+              if(partitions.ricartAgrawala[msg.partition].deferReply(msg.timestamp, msg.serverId))
+              {
+                  return PeerMessage.reply(DEFERRED);
+              }
+              return PeerMessage.acknowledge(dataVersion.get());
+          }
+          // Parse the request and add it to the server
+          // Move our clock past the request so our next request is ordered after it
+          Server.logicalClock.accumulateAndGet(msg.timestamp, (clock, ts) -> Math.max(clock, ts) + 1);
+          Request r = new Request(msg.serverId,msg.timestamp);
+          RequestQueue requestQueue = partitions.queues[msg.partition];
+          requestQueue.add(r);
+          requestQueue.checkForSelfRequest();
+          // Acknowledge the request with our version of the seats
+          PeerMessage ack = PeerMessage.acknowledge(dataVersion.get());
+          // Messages on different connections can overtake each other, so the peer may get this
+          // acknowledgement before our own request. Send the request along so it can't enter first
+          Request pending = requestQueue.pendingRequest();
+          if(pending != null)
+          {
+              ack.serverId = Server.serverId;
+              ack.timestamp = pending.logicalTimestamp;
+          }
+          return ack;
+      }
+
+      // Send a request to all peers to enter CS. block until peers send response
+      /**
+       * TODO: Test that this actually blocks until all the peers respond
+       */
+      protected void sendRequest(int partition)
+      {
+          SeatPartitions partitions = Server.partitions;
+          RequestSentEvent event = new RequestSentEvent();
+          event.begin();
+          event.serverId = Server.serverId;
+          event.partition = partition;
+          if(partitions.ricartAgrawala != null)
+          {
+              // We're in the CS once every peer replied
+              PeerMessage requestMsg = PeerMessage.request(Server.serverId, partitions.ricartAgrawala[partition].startRequest());
+              requestMsg.version = dataVersion.get();
+              requestMsg.partition = partition;
+              event.timestamp = requestMsg.timestamp;
+              try
+              {
+                  this.serverThread.requestPeers(requestMsg);
+              }catch(InterruptedException e)
+              {
+                  e.printStackTrace();
+              }
+              event.commit();
+              return;
+          }
+          RequestQueue requestQueue = partitions.queues[partition];
+          // Add this request to the queue. The peers get the same timestamp so they order it like we do
+          int timestamp = Server.logicalClock.incrementAndGet();
+          Request r = new Request(Server.serverId,timestamp);
+          r.granted = new CompletableFuture<>();
+          this.pendingRequest = r;
+          requestQueue.add(r);
+          // Send the request to all the peers, requestPeers waits for every peer to acknowledge it
+          PeerMessage requestMsg = PeerMessage.request(Server.serverId, timestamp);
+          requestMsg.partition = partition;
+          event.timestamp = timestamp;
+          try
+          {
+              this.serverThread.requestPeers(requestMsg);
+          }catch(InterruptedException e)
+          {
+              e.printStackTrace();
+          }
+          event.commit();
+          requestQueue.acknowledged(r);
+
+      }
+
+      private PeerMessage release(PeerMessage msg)
+      {
+          ReleaseReceivedEvent event = new ReleaseReceivedEvent();
+          event.begin();
+          event.serverId = msg.serverId;
+          event.timestamp = logicalClock.get();
+          event.partition = msg.partition;
+          Request toRemove = new Request(msg.serverId,0);
+          RequestQueue requestQueue = Server.partitions.queues[msg.partition];
+          requestQueue.remove(toRemove);
+          requestQueue.checkForSelfRequest();
+          event.commit();
+          return PeerMessage.reply("Removed request from " + msg.serverId);
+      }
+
+      private PeerMessage handshake(PeerMessage msg)
+      {
+          // Remember whether the peer reads binary messages
+          Peer p = this.serverThread.getPeer(msg.serverId);
+          if(p != null)
+          {
+              p.binary = msg.binary && Server.useBinaryCodec();
+              p.channel = msg.channel;
+              p.reads = msg.reads;
+              // The peer came back up, any connection we had to it is dead
+              p.connection.close();
+              // So are the requests it made before going down
+              this.serverThread.restarted(p);
+          }
+          // Respond to the handshake with what the peer is missing of our seats. A peer that kept its
+          // seats over a restart only needs the changes since its version, if our log has them
+          // Otherwise it gets our version and asks for the seat ranges that differ
+          PeerMessage reply = null;
+          if(msg.version > 0 && Server.seatLog != null && dataVersion.get() > msg.version)
+          {
+              reply = Server.seatLog.changesSince(msg.version);
+          }
+          if(reply != null)
+          {
+              reply.type = HANDSHAKE;
+          }
+          else
+          {
+              reply = new PeerMessage(HANDSHAKE);
+              reply.serverId = Server.serverId;
+              reply.version = dataVersion.get();
+              reply.versions = Server.partitions.getVersions();
+          }
+          reply.binary = Server.useBinaryCodec();
+          reply.channel = true;
+          reply.reads = true;
+          return reply;
+      }
+
+      // Answer a peer reconciling its seats with ours: the digest of each range after our version
+      // and partition versions, "-" for a single partition, or the seats in the ranges
+      private PeerMessage digest(PeerMessage msg)
+      {
+          String[] tokens = msg.text.trim().split("\\s+");
+          List<int[]> ranges = SeatDigest.parseRanges(tokens, 1);
+          if("hash".equals(tokens[0]))
+          {
+              // Read before the seats, a seat changes before its version is counted so the seats
+              // hold at least every change up to it
+              int version = dataVersion.get();
+              int[] versions = Server.partitions.getVersions();
+              SeatStore seats = this.serverThread.getSeats();
+              StringBuilder hashes = new StringBuilder();
+              hashes.append(version).append(' ');
+              hashes.append(versions != null ? Arrays.stream(versions).mapToObj(String::valueOf).collect(Collectors.joining(",")) : "-");
+              for(int[] range: ranges)
+              {
+                  hashes.append(' ').append(Long.toHexString(seats.hash(range[0], range[1])));
+              }
+              return PeerMessage.reply(hashes.toString());
+          }
+          SeatStore seats = this.serverThread.getSeats();
+          List<Integer> seatNums = new ArrayList<>();
+          for(int[] range: ranges)
+          {
+              for(int seatNum = range[0]; seatNum <= range[1]; seatNum++)
+              {
+                  seatNums.add(seatNum);
+              }
+          }
+          return PeerMessage.delta(0, dataVersion.get(), seats, seatNums);
+      }
+
+      // Tell a peer that wants to read locally which version of the seats we have
+      private PeerMessage version(PeerMessage msg)
+      {
+          return PeerMessage.version(Server.serverId, dataVersion.get());
+      }
+
+
+      // Send a release to all peers after exiting CS
+      // TODO: Need to test if this is multithreaded safe
+      protected void sendRelease(int partition)
+      {
+          CsHeldEvent held = this.heldEvents.remove(partition);
+          if(held != null)
+          {
+              held.commit();
+          }
+          ReleaseSentEvent event = new ReleaseSentEvent();
+          event.begin();
+          event.serverId = Server.serverId;
+          event.timestamp = logicalClock.get();
+          event.partition = partition;
+          if(Server.partitions.ricartAgrawala != null)
+          {
+              // Acknowledge the requests we held back
+              List<Request> deferred = Server.partitions.ricartAgrawala[partition].leave();
+              try
+              {
+                  this.serverThread.acknowledgeDeferred(partition, deferred);
+              }catch(InterruptedException e)
+              {
+                  e.printStackTrace();
+              }
+              event.commit();
+              return;
+          }
+          /**
+           * TODO: Test if this is multithreaded safe
+           */
+          PeerMessage releaseMsg  = PeerMessage.release(Server.serverId);
+          releaseMsg.partition = partition;
+          try
+          {
+              this.serverThread.messagePeers(releaseMsg);
+          }catch(InterruptedException e)
+          {
+              e.printStackTrace();
+          }
+          event.commit();
+      }
+
+      protected void waitToEnter(int partition)
+      {
+          if(Server.partitions.ricartAgrawala == null)
+          {
+              CsWaitEvent event = new CsWaitEvent();
+              event.begin();
+              event.serverId = Server.serverId;
+              event.timestamp = this.pendingRequest.logicalTimestamp;
+              event.partition = partition;
+              // Wait until our request gets to the top of the queue
+              try
+              {
+                  this.pendingRequest.granted.get();
+              }catch (InterruptedException | ExecutionException e)
+              {
+                  e.printStackTrace();
+                  System.err.println("Error waiting for self request to get to top of queue");
+              }
+              this.pendingRequest = null;
+              event.commit();
+          }
+          // With Ricart-Agrawala every peer already replied to the request
+          CsHeldEvent held = new CsHeldEvent();
+          held.begin();
+          held.serverId = Server.serverId;
+          held.timestamp = logicalClock.get();
+          held.partition = partition;
+          this.heldEvents.put(partition, held);
+      }
+
+      // Process a message framed on a long lived connection. The reply is in the format of the request
+      protected byte[] processFrame(byte[] request) throws IOException
+      {
+          logicalClock.getAndIncrement();
+          byte[] response;
+          if(request.length > 0 && (request[0] & 0xFF) == BinaryCodec.MAGIC)
+          {
+              PeerMessage reply = processPeerMessage(BinaryCodec.read(new ByteArrayInputStream(request)));
+              response = reply != null ? BinaryCodec.encode(reply) : new byte[0];
+          }
+          else
+          {
+              String reply = processMessage(new String(request, StandardCharsets.UTF_8));
+              response = reply != null ? reply.getBytes(StandardCharsets.UTF_8) : new byte[0];
+          }
+          logicalClock.getAndIncrement();
+          return response;
+      }
+
+      public PeerMessage processPeerMessage(PeerMessage msg)
+      {
+          if (UPDATE.equals(msg.type))
+          {
+              // Received a update message to update the seat list
+              return update(msg);
+          }
+          else if (DELTA.equals(msg.type))
+          {
+              // Received the seats a peer changed
+              return delta(msg);
+          }
+          else if (REQUEST.equals(msg.type))
+          {
+              // Received a request to enter the CS from a peer
+              return request(msg);
+          }
+          else if (RELEASE.equals(msg.type))
+          {
+              return release(msg);
+          }
+          else if (ACKNOWLEDGE.equals(msg.type) && Server.partitions.ricartAgrawala != null)
+          {
+              // A peer that deferred its reply to our request left the CS
+              Server.partitions.ricartAgrawala[msg.partition].acknowledge(msg);
+              return PeerMessage.reply("");
+          }
+          else if (HANDSHAKE.equals(msg.type))
+          {
+              // Received a handshake from a peer
+              return handshake(msg);
+          }
+          else if (VERSION.equals(msg.type))
+          {
+              return version(msg);
+          }
+          else if (DIGEST.equals(msg.type))
+          {
+              return digest(msg);
+          }
+          else if (ESCROW.equals(msg.type) && this.serverThread.escrow != null)
+          {
+              return this.serverThread.escrow.handle(msg);
+          }
+          return null;
+      }
+
+      public String processMessage(String msg)
+      {
+          String[] tokens = msg.trim().split("\\s+");
+          String response = null;
+          if(tokens == null || tokens.length < 1)
+          {
+              return response;
+          }
+
+          if (PeerMessage.isPeerMessage(tokens[0]))
+          {
+              // Received a message from a peer
+              PeerMessage peerMsg = PeerMessage.fromText(msg);
+              peerMsg.size = msg.length();
+              PeerMessage reply = processPeerMessage(peerMsg);
+              if(reply != null)
+              {
+                  response = reply.toText();
+              }
+          }
+          else if(LOAD.equals(tokens[0]))
+          {
+              response = String.valueOf(runningCommands.get());
+          }
+          else if(STATS.equals(tokens[0]))
+          {
+              response = this.serverThread.stats();
+          }
+          else if(isClientCommand(tokens[0]))
+          {
+              runningCommands.incrementAndGet();
+              long start = System.nanoTime();
+              try
+              {
+                  response = runClientCommand(msg, tokens);
+              }finally
+              {
+                  commandLatency.recordSince(start);
+                  runningCommands.decrementAndGet();
+              }
+          }
+            return response;
+      }
+
+      // Run a client command the way this server is set up to
+      private String runClientCommand(String msg, String[] tokens)
+      {
+          if(this.serverThread.escrow != null)
+          {
+              // Run at the server owning the name, no CS
+              return this.serverThread.escrow.run(msg);
+          }
+          else if(SEARCH.equals(tokens[0]) && this.serverThread.canReadLocally())
+          {
+              // Answer from our own seats without entering the CS
+              return runOperation(tokens);
+          }
+          else if(this.serverThread.groupCommit != null)
+          {
+              // Run together with the other commands waiting for the CS on this server
+              // A command spanning partitions doesn't hold up the lane of any one of them. Every lane
+              // enters its partitions in ascending order, so lanes don't wait on each other in a cycle
+              int[] partitions = partitionsFor(msg);
+              GroupCommitThread[] lanes = this.serverThread.groupCommit;
+              return lanes[partitions.length > 1 ? lanes.length - 1 : partitions[0]].submit(msg, partitions);
+          }
+          // Enter the CS, run the command, update the peers of the new seats and release the CS
+          return runInCS(msg);
+      }
+
+
+  }
+
+  // A client command waiting for its group to run
+  private static class PendingCommand
+  {
+      String msg;
+      // The partitions the command enters the CS of
+      int[] partitions;
+      CompletableFuture<String> reply = new CompletableFuture<>();
+
+      public PendingCommand(String msg, int[] partitions)
+      {
+          this.msg = msg;
+          this.partitions = partitions;
+      }
+  }
+
+  // Runs the client commands of this server in groups. Every command that queued up while the
+  // previous group held the CS runs in the next one, so the group pays for one request, one
+  // update and one release to the peers. Each command still gets its own reply
+  private static class GroupCommitThread extends ClientWorkerThread
+  {
+      LinkedBlockingQueue<PendingCommand> pending = new LinkedBlockingQueue<>();
+      int maxGroup;
+
+      public GroupCommitThread(ServerThread serverThread, int maxGroup)
+      {
+          super(serverThread,null);
+          this.maxGroup = Math.max(1, maxGroup);
+      }
+
+      // Queue a command for the next group and wait for its reply
+      public String submit(String msg, int[] partitions)
+      {
+          PendingCommand command = new PendingCommand(msg, partitions);
+          this.pending.add(command);
+          try
+          {
+              return command.reply.get();
+          }catch(InterruptedException e)
+          {
+              System.err.println("Interrupted waiting for command to run");
+              e.printStackTrace();
+          }catch(ExecutionException e)
+          {
+              System.err.println("Unable to run command " + msg);
+              e.getCause().printStackTrace();
+          }
+          return null;
+      }
+
+      public void run()
+      {
+          List<PendingCommand> group = new ArrayList<>();
+          List<String> replies = new ArrayList<>();
+          while(true)
+          {
+              try
+              {
+                  group.add(this.pending.take());
+                  this.pending.drainTo(group, this.maxGroup - 1);
+              }catch(InterruptedException e)
+              {
+                  return;
+              }
+              // Enter the partitions every command of the group needs
+              enterCS(Server.partitions.of(group.stream().flatMapToInt(command -> Arrays.stream(command.partitions)).toArray()));
+              List<Integer> retries = new ArrayList<>();
+              for (PendingCommand command: group)
+              {
+                  replies.add(run(command));
+                  if(this.needsAllPartitions)
+                  {
+                      this.needsAllPartitions = false;
+                      retries.add(replies.size() - 1);
+                  }
+              }
+              leaveCS();
+              if(retries.isEmpty() == false)
+              {
+                  // The commands that needed other partitions run again in all of them
+                  enterCS(Server.partitions.all);
+                  for (int i: retries)
+                  {
+                      replies.set(i, run(group.get(i)));
+                      this.needsAllPartitions = false;
+                  }
+                  leaveCS();
+              }
+              // Reply once the peers have the changes, like a command that runs alone
+              for (int i = 0; i < group.size(); i++)
+              {
+                  group.get(i).reply.complete(replies.get(i));
+              }
+              group.clear();
+              replies.clear();
+          }
+      }
+
+      private String run(PendingCommand command)
+      {
+          try
+          {
+              return runCommand(command.msg);
+          }catch(RuntimeException e)
+          {
+              command.reply.completeExceptionally(e);
+              return null;
+          }
+      }
+  }
+
+  private static class TcpClientWorkerThread extends ClientWorkerThread
+  {
+      public TcpClientWorkerThread(ServerThread serverThread, Socket s)
+      {
+          super(serverThread,s);
+      }
+
+      // Serve framed messages from a peer until it closes the connection. Each message is
+      // processed on its own thread and the reply is framed with the id of its request
+      private void serveChannel(InputStream input) throws IOException
+      {
+          DataInputStream in = new DataInputStream(input);
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+          Lock writeLock = new ReentrantLock();
+          while(true)
+          {
+              int requestId;
+              byte[] request;
+              try
+              {
+                  requestId = in.readInt();
+                  request = new byte[in.readInt()];
+                  in.readFully(request);
+              }catch(EOFException e)
+              {
+                  // The peer closed the connection
+                  return;
+              }
+              this.serverThread.channelExecutor.execute(() ->
+              {
+                  try
+                  {
+                      byte[] response = processFrame(request);
+                      writeLock.lock();
+                      try
+                      {
+                          out.writeInt(requestId);
+                          out.writeInt(response.length);
+                          out.write(response);
+                          out.flush();
+                      }finally
+                      {
+                          writeLock.unlock();
+                      }
+                  }catch(Exception e)
+                  {
+                      System.err.println("Unable to reply to peer");
+                      e.printStackTrace();
+                  }
+              });
+          }
+      }
+
+      // Serve the commands of a client session one after the other until the client closes it.
+      // The client may send the next commands before reading the replies
+      private void serveSession(InputStream input) throws IOException
+      {
+          DataInputStream in = new DataInputStream(input);
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+          while(true)
+          {
+              byte[] request;
+              try
+              {
+                  request = new byte[in.readInt()];
+                  in.readFully(request);
+              }catch(EOFException e)
+              {
+                  // The client closed the session
+                  return;
+              }
+              byte[] response = processFrame(request);
+              out.writeInt(response.length);
+              out.write(response);
+              // Hold the reply back while the client has more commands waiting
+              if(in.available() == 0)
+              {
+                  out.flush();
+              }
+          }
+      }
+
+      public void run()
+      {
+          logicalClock.getAndIncrement();
+          // Read the message from the client
+          try
+          {
+              //We have received a TCP socket from the client.  Receive message and reply.
+              BufferedInputStream input = new BufferedInputStream(s.getInputStream());
+              // Peers that negotiated it send binary messages, everything else is a line of text
+              input.mark(1);
+              int firstByte = input.read();
+              input.reset();
+              if(firstByte == PeerConnection.CHANNEL_MAGIC)
+              {
+                  input.read();
+                  serveChannel(input);
+                  return;
+              }
+              if(firstByte == SESSION_MAGIC)
+              {
+                  input.read();
+                  serveSession(input);
+                  return;
+              }
+              if(firstByte == BinaryCodec.MAGIC)
+              {
+                  PeerMessage msg = BinaryCodec.read(input);
+                  logicalClock.getAndIncrement();
+                  PeerMessage response = processPeerMessage(msg);
+                  logicalClock.getAndIncrement();
+                  if(response != null)
+                  {
+                      OutputStream output = s.getOutputStream();
+                      output.write(BinaryCodec.encode(response));
+                      output.flush();
+                  }
+                  return;
+              }
+              BufferedReader inputReader = new BufferedReader(new InputStreamReader(input));
+              boolean autoFlush = true;
+              PrintWriter outputWriter = new PrintWriter(s.getOutputStream(), autoFlush);
+              String inputLine = inputReader.readLine();
+              if (inputLine != null && inputLine.length() > 0) {
+                  String msg = inputLine;
+                  // Increment the logical clock everytime a client sends a message
+                  logicalClock.getAndIncrement();
+                  String response = processMessage(msg);
+                  // Increment the logical clock on response
+                  logicalClock.getAndIncrement();
+                  if(response != null)
+                  {
+                      outputWriter.write(response);
+                      outputWriter.flush();
+                  }
+                  outputWriter.close();
+              }
+          }catch (Exception e)
+          {
+              System.err.println("Unable to receive message from client");
+              e.printStackTrace();
+          }finally
+          {
+              openConnections.decrementAndGet();
+              if(s != null)
+              {
+                  try
+                  {
+                      s.close();
+                  }catch (Exception e)
+                  {
+                      System.err.println("Unable to close client socket");
+                      e.printStackTrace();
+                  }
+              }
+
+          }
+
+      }
+
+  }
+  private static abstract class ServerThread implements Runnable
+  {
+      int port;
+      SeatStore seats;
+      AtomicBoolean isRunning;
+      List<Peer> peers;
+      Lock threadLock;
+      // How long to wait before asking a peer that didn't acknowledge a request again
+      static final long REQUEST_RETRY_MILLIS = 100;
+      // Processes the messages peers send over long lived connections, on virtual threads with threads=virtual
+      ExecutorService channelExecutor = Server.newWorkerExecutor(Executors::newCachedThreadPool);
+      PeerMessenger messenger;
+      // How long to wait on peers to reply, 0 waits as long as it takes
+      long peerTimeout = Server.getIntOption("peerTimeout", 0);
+      // Runs client commands in groups, one lane for the commands of each partition and with more
+      // than one partition a last lane for the commands that span several. null when every command
+      // enters the CS on its own
+      GroupCommitThread[] groupCommit;
+      // How a search is answered: cs enters the CS like a write, linearizable reads the local seats
+      // once every peer confirmed it has no newer version, a query and a reply per peer for every
+      // search, stale reads them if that was confirmed at most maxStaleness ms ago
+      String reads = Server.getOption("reads", "stale");
+      long maxStaleness = Server.getIntOption("maxStaleness", 1000);
+      // When the peers last confirmed we had every version they had
+      volatile long confirmedAt = 0;
+      // Seats owned by each server when running in escrow mode, null when every command enters the CS
+      SeatEscrow escrow;
+
+      public ServerThread(int port, SeatStore seats,List<Peer> peers)
+      {
+          this.port = port;
+          this.seats = seats;
+          this.peers = peers;
+          this.messenger = new PeerMessenger(peers);
+          this.isRunning = new AtomicBoolean(false);
+          this.threadLock = new ReentrantLock();
+          if("true".equals(Server.getOption("escrow", "false")))
+          {
+              this.escrow = new SeatEscrow(this, seats.size(), peers.size());
+          }
+          else if("true".equals(Server.getOption("groupCommit", "true")))
+          {
+              int count = Server.partitions.count;
+              this.groupCommit = new GroupCommitThread[count > 1 ? count + 1 : 1];
+              for(int p = 0; p < this.groupCommit.length; p++)
+              {
+                  this.groupCommit[p] = new GroupCommitThread(this, Server.getIntOption("maxGroup", 128));
+                  Server.startWorkerThread(this.groupCommit[p], "group-commit-" + p, true);
+              }
+          }
+      }
+
+      public void setSeats(int version, SeatStore updatedSeats)
+      {
+          threadLock.lock();
+          this.seats = updatedSeats;
+          Server.dataVersion.set(version);
+          Server.logSeats(LogRecord.snapshot(version, updatedSeats));
+          threadLock.unlock();
+      }
+
+      // Take the seats of a peer's full seat list. With more than one partition only the partitions
+      // the peer has a newer version of are taken, the others may have changes the peer hasn't seen
+      public void setSeats(PeerMessage msg)
+      {
+          SeatPartitions partitions = Server.partitions;
+          if(partitions.count == 1 || msg.versions == null || msg.versions.length != partitions.count)
+          {
+              setSeats(msg.version, msg.toSeatStore());
+              return;
+          }
+          SeatStore updatedSeats = msg.toSeatStore();
+          threadLock.lock();
+          try
+          {
+              List<Integer> ahead = new ArrayList<>();
+              for(int p = 0; p < partitions.count; p++)
+              {
+                  if(msg.versions[p] > partitions.versions.get(p))
+                  {
+                      ahead.add(p);
+                  }
+              }
+              // Free the seats first so a name moving between partitions can be booked again
+              for(int p: ahead)
+              {
+                  for(int seatNum = partitions.first(p); seatNum <= partitions.last(p); seatNum++)
+                  {
+                      if(updatedSeats.getBookedBy(seatNum) == null)
+                      {
+                          this.seats.set(seatNum, null);
+                      }
+                  }
+              }
+              int version = 0;
+              for(int p: ahead)
+              {
+                  int first = partitions.first(p);
+                  int[] seatNums = new int[partitions.last(p) - first + 1];
+                  String[] names = new String[seatNums.length];
+                  for(int seatNum = first; seatNum <= partitions.last(p); seatNum++)
+                  {
+                      String name = updatedSeats.getBookedBy(seatNum);
+                      if(name != null)
+                      {
+                          this.seats.set(seatNum, name);
+                      }
+                      seatNums[seatNum - first] = seatNum;
+                      names[seatNum - first] = name;
+                  }
+                  // Log the whole partition as a delta to the peer's version
+                  LogRecord r = new LogRecord(LogRecord.DELTA_RECORD, seatNums, names);
+                  r.partition = p;
+                  r.baseVersion = partitions.versions.get(p);
+                  r.version = msg.versions[p];
+                  Server.logSeats(r);
+                  partitions.versions.set(p, msg.versions[p]);
+              }
+              for(int p = 0; p < partitions.count; p++)
+              {
+                  version += partitions.versions.get(p);
+              }
+              Server.dataVersion.set(version);
+          }finally
+          {
+              threadLock.unlock();
+          }
+      }
+
+      // Apply the changed seats in place if we're at the version they were made from.
+      // Returns false if we missed an earlier version and need a full snapshot
+      public boolean applyDelta(PeerMessage msg)
+      {
+          int[] seatNums = msg.seatNums;
+          String[] bookedBy = msg.bookedBy;
+          SeatPartitions partitions = Server.partitions;
+          // With more than one partition the versions are the partition's
+          boolean partitioned = partitions.count > 1;
+          threadLock.lock();
+          try
+          {
+              int current = partitioned ? partitions.versions.get(msg.partition) : Server.dataVersion.get();
+              int version = msg.version;
+              if(current >= version)
+              {
+                  // Already have these changes
+                  return true;
+              }
+              if(current != msg.baseVersion)
+              {
+                  return false;
+              }
+              // Free the changed seats first so a name moving between seats can be booked again
+              for(int i = 0; i < seatNums.length; i++)
+              {
+                  if(bookedBy[i] == null)
+                  {
+                      this.seats.set(seatNums[i], null);
+                  }
+              }
+              for(int i = 0; i < seatNums.length; i++)
+              {
+                  if(bookedBy[i] != null)
+                  {
+                      this.seats.set(seatNums[i], bookedBy[i]);
+                  }
+              }
+              if(partitioned)
+              {
+                  partitions.versions.set(msg.partition, version);
+                  Server.dataVersion.addAndGet(version - current);
+              }
+              else
+              {
+                  Server.dataVersion.set(version);
+              }
+              Server.logSeats(LogRecord.delta(msg));
+              return true;
+          }finally
+          {
+              threadLock.unlock();
+          }
+      }
+
+      public SeatStore getSeats()
+      {
+          SeatStore toReturn;
+          threadLock.lock();
+          toReturn = this.seats;
+          threadLock.unlock();
+          return toReturn;
+      }
+
+      public List<Peer> getPeers()
+      {
+          return this.peers;
+      }
+
+      public void stop()
+      {
+          isRunning.getAndSet(false);
+      }
+
+      public Peer getPeer(int id)
+      {
+          if(id < 1 || id > this.peers.size())
+          {
+              return null;
+          }
+          return this.peers.get(id - 1);
+      }
+
+      private void processResponseFromPeer(Peer p, PeerMessage sent, PeerMessage msg)
+      {
+          if(msg == null)
+          {
+              return;
+          }
+          // Peers from before deltas don't answer them
+          boolean deltaIgnored = DELTA.equals(sent.type) && PeerMessage.REPLY.equals(msg.type) && msg.text.isEmpty();
+          if(RESYNC.equals(msg.type) || deltaIgnored)
+          {
+              // The peer missed a version, send it the full seat list
+              PeerMessage update = PeerMessage.withSeats(UPDATE, dataVersion.get(), getSeats());
+              processResponseFromPeer(p, update, this.messenger.send(p, update).join());
+          }
+          // received an ack to the request. Check if we need to update seats to newer version
+          else if(ACKNOWLEDGE.equals(msg.type) || HANDSHAKE.equals(msg.type))
+          {
+              if(ACKNOWLEDGE.equals(msg.type) && REQUEST.equals(sent.type))
+              {
+                  AckReceivedEvent event = new AckReceivedEvent();
+                  event.serverId = p.id;
+                  event.timestamp = sent.timestamp;
+                  event.partition = sent.partition;
+                  event.commit();
+              }
+              if(ACKNOWLEDGE.equals(msg.type) && REQUEST.equals(sent.type) && msg.serverId > 0 && Server.partitions.ricartAgrawala == null)
+              {
+                  // Queue the peer's own request in case it hasn't reached us yet
+                  Server.partitions.queues[sent.partition].add(new Request(msg.serverId, msg.timestamp));
+              }
+              if(HANDSHAKE.equals(msg.type))
+              {
+                  // Talk binary to the peer from now on if it offered it
+                  p.binary = msg.binary && Server.useBinaryCodec();
+                  p.channel = msg.channel;
+                  p.reads = msg.reads;
+              }
+              if(msg.numSeats < 0 && msg.baseVersion > 0 && msg.version > dataVersion.get())
+              {
+                  // The seats changed since the version we came up with
+                  applyDelta(msg);
+              }
+              boolean ahead = msg.version > dataVersion.get() || Server.partitions.isAhead(msg.versions);
+              // A peer has a newer version, update to it
+              if(msg.numSeats >= 0 && ahead)
+              {
+                  // update our seat list
+                  setSeats(msg);
+              }
+              else if(msg.numSeats < 0 && msg.baseVersion == 0 && ahead)
+              {
+                  reconcile(p, msg);
+              }
+          }
+
+      }
+
+      // A peer replied with a newer version than ours. Compare digests of seat ranges with the peer,
+      // going down only into the ranges that differ, then take the peer's seats in the leaf ranges
+      // that differ. With more than one partition only the partitions the peer is ahead in are compared
+      private void reconcile(Peer p, PeerMessage ahead)
+      {
+          SeatPartitions partitions = Server.partitions;
+          int numSeats = getSeats().size();
+          List<int[]> ranges = new ArrayList<>();
+          if(partitions.count == 1)
+          {
+              ranges.add(new int[] {1, numSeats});
+          }
+          else
+          {
+              for(int i = 0; i < partitions.count; i++)
+              {
+                  if(ahead.versions != null && ahead.versions.length == partitions.count && ahead.versions[i] > partitions.versions.get(i))
+                  {
+                      ranges.add(new int[] {partitions.first(i), partitions.last(i)});
+                  }
+              }
+          }
+          List<int[]> behind = new ArrayList<>(ranges);
+          List<int[]> leaves = new ArrayList<>();
+          // The peer's versions when it answered the first digests. Every range we match or take is
+          // at least that new
+          PeerMessage at = null;
+          while(ranges.isEmpty() == false)
+          {
+              List<int[]> children = new ArrayList<>();
+              for(int[] range: ranges)
+              {
+                  if(SeatDigest.isLeaf(range))
+                  {
+                      children.add(range);
+                  }
+                  else
+                  {
+                      children.addAll(SeatDigest.split(range));
+                  }
+              }
+              PeerMessage hashes = this.messenger.send(p, PeerMessage.digest("hash", children)).join();
+              if(hashes == null || hashes.text == null)
               {
-                return "Seat " + s.id + " already booked against the name provided";
+                  return;
               }
-              if(s.book(name))
+              String[] theirs = hashes.text.trim().split("\\s+");
+              if(theirs.length != children.size() + 2)
               {
-                // Upddate the version of the data since we made a modification
-                dataVersion.getAndIncrement();
-                return "Seat assigned to you is " + s.id;
+                  return;
+              }
+              if(at == null)
+              {
+                  at = new PeerMessage(VERSION);
+                  at.version = Integer.parseInt(theirs[0]);
+                  at.versions = "-".equals(theirs[1]) ? null : PeerMessage.parseVersions(theirs[1]);
+              }
+              SeatStore seats = getSeats();
+              ranges = new ArrayList<>();
+              for(int i = 0; i < children.size(); i++)
+              {
+                  int[] range = children.get(i);
+                  if(Long.parseUnsignedLong(theirs[i + 2], 16) == seats.hash(range[0], range[1]))
+                  {
+                      continue;
+                  }
+                  (SeatDigest.isLeaf(range) ? leaves : ranges).add(range);
               }
           }
-
-          return "Seat " + seatNum + " is not available";
-      }
-
-      private String search(String[] tokens)
-      {
-          if(tokens == null || tokens.length < 2 )
-          {
-              return null;
-          }
-          String name = tokens[1];
-          List<Seat> seats = this.serverThread.getSeats();
-          for (Seat s: seats)
+          PeerMessage changed = new PeerMessage(DELTA);
+          if(leaves.isEmpty() == false)
           {
-              if(s.getBookedBy() != null && s.getBookedBy().equals(name))
+              changed = this.messenger.send(p, PeerMessage.digest("seats", leaves)).join();
+              if(changed == null)
               {
-                  return "" + s.id;
+                  return;
               }
           }
-          return null;
+          if(at != null)
+          {
+              applyReconciled(at, behind, changed);
+          }
       }
 
-      private String delete(String[] tokens)
+      // Take the seats fetched from a peer that was ahead, in the ranges we're still behind in. We
+      // take the versions the peer had when the comparing started: the seats may be newer, and the
+      // deltas after those versions apply again, but none are newer than the seats
+      private void applyReconciled(PeerMessage ahead, List<int[]> behind, PeerMessage changed)
       {
-          if(tokens == null || tokens.length < 2 )
-          {
-              return null;
-          }
-          String name = tokens[1];
-          List<Seat> seats = this.serverThread.getSeats();
-          for (Seat s: seats)
+          SeatPartitions partitions = Server.partitions;
+          threadLock.lock();
+          try
           {
-              if(s.getBookedBy() != null && s.getBookedBy().equals(name))
+              for(int[] range: behind)
               {
-                  if(s.freeSeat())
+                  int p = partitions.ofSeat(range[0]);
+                  int current = partitions.count == 1 ? Server.dataVersion.get() : partitions.versions.get(p);
+                  int version = partitions.count == 1 ? ahead.version : ahead.versions[p];
+                  if(current >= version)
                   {
-                       // Upddate the version of the data since we made a modification
-                       dataVersion.getAndIncrement();
-                      return "" + s.id;
+                      continue;
                   }
-
+                  List<Integer> seatNums = new ArrayList<>();
+                  List<String> names = new ArrayList<>();
+                  for(int i = 0; i < changed.seatNums.length; i++)
+                  {
+                      if(changed.seatNums[i] >= range[0] && changed.seatNums[i] <= range[1])
+                      {
+                          seatNums.add(changed.seatNums[i]);
+                          names.add(changed.bookedBy[i]);
+                      }
+                  }
+                  // Free the changed seats first so a name moving between seats can be booked again
+                  for(int i = 0; i < seatNums.size(); i++)
+                  {
+                      if(names.get(i) == null)
+                      {
+                          this.seats.set(seatNums.get(i), null);
+                      }
+                  }
+                  for(int i = 0; i < seatNums.size(); i++)
+                  {
+                      if(names.get(i) != null)
+                      {
+                          this.seats.set(seatNums.get(i), names.get(i));
+                      }
+                  }
+                  LogRecord r = new LogRecord(LogRecord.DELTA_RECORD, seatNums.stream().mapToInt(Integer::intValue).toArray(), names.toArray(new String[0]));
+                  r.partition = p;
+                  r.baseVersion = current;
+                  r.version = version;
+                  Server.logSeats(r);
+                  if(partitions.count > 1)
+                  {
+                      partitions.versions.set(p, version);
+                  }
+                  Server.dataVersion.addAndGet(version - current);
               }
+          }finally
+          {
+              threadLock.unlock();
           }
-          return "No reservation found for " + name;
       }
-
-      private void updateSeatList(int version, String msg)
+      // Counters and latencies of this server, one per line
+      public String stats()
       {
-          msg = msg.replace("{\"seats\":","");
-          msg = msg.replace("[","");
-          msg = msg.replace("]","");
-          String[] tokens = msg.split(",");
-          List<Seat> updatedSeats = new ArrayList();
-          for (int i = 0; i < tokens.length;i+=0)
+          StringBuilder stats = new StringBuilder();
+          stats.append("logical clock: ").append(logicalClock.get()).append('\n');
+          stats.append("data version: ").append(dataVersion.get()).append('\n');
+          stats.append("client commands running: ").append(runningCommands.get()).append('\n');
+          stats.append("request queue depth:");
+          for (RequestQueue requestQueue: Server.partitions.queues)
           {
-              String id = tokens[i];
-              i++;
-              String bookedBy = tokens[i];
-              i++;
-              String booked = tokens[i];
-              i++;
-              Seat s = Seat.fromString(id,bookedBy,booked);
-              updatedSeats.add(s);
+              stats.append(' ').append(requestQueue.size());
           }
-          serverThread.setSeats(version,updatedSeats);
-      }
-
-      /**
-       * Parse the updated seats
-       * @param msg
-       * @return
-       */
-      private String update(String msg)
-      {
-          String[] strs = msg.split("\\s+");
-          int version = Integer.parseInt(strs[1]);
-          String seatsJson = strs[2];
-          updateSeatList(version,seatsJson);
-          return "Seats updated successfully";
-      }
-
-      private String getSeatsAsJson(List<Seat> seats)
-      {
-          String json = "{\"seats\":[";
-          for(Seat s: seats)
+          stats.append('\n');
+          stats.append("connections: ").append(openConnections.get()).append(" open, ")
+                  .append(acceptedConnections.get()).append(" accepted\n");
+          ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+          stats.append("threads: ").append(threads.getThreadCount()).append(" live, ")
+                  .append(threads.getPeakThreadCount()).append(" peak\n");
+          stats.append(this.messenger.getUtilization()).append('\n');
+          stats.append("command: ").append(commandLatency.summary()).append('\n');
+          stats.append("cs wait: ").append(csWaitLatency.summary()).append('\n');
+          stats.append("operation: ").append(operationLatency.summary()).append('\n');
+          stats.append("update peers: ").append(updatePeersLatency.summary());
+          for (Peer p: this.messenger.otherPeers())
           {
-              json += s.toString() + ",";
+              stats.append('\n').append("peer ").append(p.id).append(p.suspected ? " (suspected)" : "")
+                      .append(" round trip: ").append(p.roundTrip.summary());
           }
-          // remove the last comme
-          json = json.substring(0, json.length() - 1);
-          json += "]}";
-
-          return json;
+          return stats.toString();
       }
 
-      // Send the updated seats list to every peer
-      private String updatePeers()
+      // The failure detector stopped hearing from the peer. Drop its requests, stop waiting on it and
+      // leave it out of the messages to the peers
+      public void suspect(Peer p)
       {
-          List<Seat> seats = this.serverThread.getSeats();
-          int version = dataVersion.get();
-          String seatsJson = getSeatsAsJson(seats);
-          // Send the version of the data in the update
-          String msg = UPDATE + " " + version + " " + seatsJson;
-          try
+          p.suspected = true;
+          System.err.println("Server " + p.id + " is not answering, continuing without it");
+          for (RequestQueue requestQueue: Server.partitions.queues)
           {
-              this.serverThread.messagePeers(msg);
-          }catch(InterruptedException e)
+              requestQueue.dropServer(p.id);
+              requestQueue.checkForSelfRequest();
+          }
+          this.messenger.peerFailed(p);
+          p.connection.close();
+          if(this.escrow != null)
           {
-              e.printStackTrace();
-              return "Unable to update peer's seat list";
+              this.escrow.suspected();
           }
-          
-          return "Peers received updated seat list";
       }
 
-      private String getRequestMsg()
+      // A suspected peer answered a heartbeat. It missed our changes while suspected, the next delta
+      // we send gets it resynced, and we catch up on its changes if it's ahead
+      public void readmit(Peer p, PeerMessage reply)
       {
-          String request = REQUEST + " " + Server.serverId + " " + Server.logicalClock.get();
-           return request;
-      }
-
-      private void processResponseFromPeer(String msg)
-      {
-          if(msg == null)
+          if(p.suspected == false)
           {
               return;
           }
-          String[] tokens = msg.split("\\s+");
-          if(tokens == null || tokens.length < 1)
+          for (RequestQueue requestQueue: Server.partitions.queues)
           {
-              return;
+              requestQueue.admitServer(p.id);
           }
-          // received an ack to the request. Check if we need to update seats to newer version
-          if(ACKNOWLEDGE.equals(tokens[0]))
+          p.suspected = false;
+          System.err.println("Server " + p.id + " is answering again");
+          readmitToEscrow(p);
+          if(reply.version > dataVersion.get() || Server.partitions.isAhead(reply.versions))
           {
-              if(tokens.length < 3)
-              {
-                  return;
-              }
-              int version = Integer.parseInt(tokens[1]);
-              // A peer has a newer version, update to it
-              if(version > dataVersion.get())
-              {
-                  // update our seat list
-                  String seatsJson = tokens[2];
-                  updateSeatList(version, seatsJson);
-              }
-
+              reconcile(p, reply);
           }
+      }
 
+      // A peer handshook after a restart. The requests it made before going down will never be released
+      public void restarted(Peer p)
+      {
+          for (RequestQueue requestQueue: Server.partitions.queues)
+          {
+              requestQueue.dropServer(p.id);
+              requestQueue.admitServer(p.id);
+              requestQueue.checkForSelfRequest();
+          }
+          p.lastHeard = System.currentTimeMillis();
+          if(p.suspected)
+          {
+              p.suspected = false;
+              System.err.println("Server " + p.id + " is back up");
+          }
+          readmitToEscrow(p);
       }
 
-      private void msgPeers(String msg) throws InterruptedException
+      // Give a peer back its seats and names in escrow mode, asking again until it answers or is
+      // suspected again
+      private void readmitToEscrow(Peer p)
       {
-          ExecutorService executor = Executors.newFixedThreadPool(5);
-          List<Callable<String>> workers = new ArrayList<>();
-          String self = Server.ipAddress + ":" + Server.port;
-          List<Peer> peers = this.serverThread.getPeers();
-          for (Peer p:peers)
+          if(this.escrow == null)
           {
-              // don't send a message to self
-              if(self.equals(p.toString()) == false)
-              {
-                Callable<String> worker = new MessagePeerThead(p, msg);
-                workers.add(worker);
-              }
+              return;
           }
-          List<Future<String>> responses = executor.invokeAll(workers);
-          for(Future<String> futureResponse: responses)
+          Server.startWorkerThread(() ->
           {
               try
               {
-                String response = futureResponse.get();
-                processResponseFromPeer(response);
-              }catch (Exception e)
+                  while(this.escrow.readmit(p.id) == false && p.suspected == false)
+                  {
+                      Thread.sleep(REQUEST_RETRY_MILLIS);
+                  }
+              }catch(InterruptedException e)
               {
                   e.printStackTrace();
-                  System.err.println("Unable to process response from peer");
               }
-          }
-      }
-
-      // Parse a request from peers
-      private String request(String[] tokens)
-      {
-          // Parse the request and add it to the server
-          int serverId = Integer.parseInt(tokens[1]);
-          int lc = Integer.parseInt(tokens[2]);
-          Request r = new Request(serverId,lc);
-          Server.requestQueue.add(r);
-          Server.requestQueue.checkForSelfRequest();
-          List<Seat> seats = this.serverThread.getSeats();
-          int version = dataVersion.get();
-          String seatsJson = getSeatsAsJson(seats);
-          // Acknowledge the request and send our own version of the seats
-          String msg = ACKNOWLEDGE + " " + version + " " + seatsJson;
-          return msg;
+          }, "escrow-readmit-" + p.id, true);
       }
 
-      // Send a request to all peers to enter CS. block until peers send response
-      /**
-       * TODO: Test that this actually blocks until all the peers respond
-       */
-      private void sendRequest()
+      // Whether a search can be answered from the local seats
+      public boolean canReadLocally()
       {
-          // Add this request to the queue
-          Request r = new Request(Server.serverId,Server.logicalClock.get());
-          Server.requestQueue.add(r);
-          /**
-           * TODO: Test if this is multithreaded safe
-           */
-          // Send the request to all the peersthe queue
-          // TODO: Make sure that this waits for all peers to respond
-          String requestMsg = getRequestMsg();
-          try
+          if("stale".equals(this.reads) && System.currentTimeMillis() - this.confirmedAt <= this.maxStaleness)
           {
-              this.serverThread.messagePeers(requestMsg);
-          }catch(InterruptedException e)
+              return true;
+          }
+          if("linearizable".equals(this.reads) || "stale".equals(this.reads))
           {
-              e.printStackTrace();
+              return confirmVersion();
           }
-          
-      }
-
-      private String release(String[] tokens)
-      {
-          // Parse the release
-          int serverId = Integer.parseInt(tokens[1]);
-          Request toRemove = new Request(serverId,0);
-          Server.requestQueue.remove(toRemove);
-          Server.requestQueue.checkForSelfRequest();
-          return "Removed request from " + serverId;
+          return false;
       }
 
-      private String handshake(String[] tokens)
+      // Ask every peer for its version of the seats. True if none of them has a change we haven't
+      // applied. A peer that can't answer means going through the CS
+      public boolean confirmVersion()
       {
-          // Parse the release
-          int serverId = Integer.parseInt(tokens[1]);
+          long started = System.currentTimeMillis();
           int version = dataVersion.get();
-          List<Seat> seats = this.serverThread.getSeats();
-          String seatsJson = getSeatsAsJson(seats);
-          // Respond to the handshake send our own version of the seats
-          String msg = HANDSHAKE + " " + version + " " + seatsJson;
-          return msg;
-
-      }
-
-
-      // Send a release to all peers after exiting CS
-      // TODO: Need to test if this is multithreaded safe
-      private void sendRelease()
-      {
-          /**
-           * TODO: Test if this is multithreaded safe
-           */
-          String releaseMsg  = RELEASE + " " + Server.serverId;
+          PeerMessage query = PeerMessage.version(Server.serverId, version);
+          Map<Peer,CompletableFuture<PeerMessage>> replies = new LinkedHashMap<>();
+          for (Peer p: this.messenger.otherPeers())
+          {
+              if(p.suspected)
+              {
+                  continue;
+              }
+              if(p.reads == false)
+              {
+                  return false;
+              }
+              replies.put(p, this.messenger.send(p, query));
+          }
+          Map<Peer,PeerMessage> responses;
           try
           {
-              this.serverThread.messagePeers(releaseMsg);
+              responses = this.messenger.awaitAll(replies, this.peerTimeout);
           }catch(InterruptedException e)
           {
               e.printStackTrace();
+              return false;
           }
-      }
-
-      private void waitToEnter()
-      {
-          boolean bool = Server.waitToEnterFlag.get();
-          // Mark that we're waiting to enter the thread
-          if(bool == false)
-          {
-              Server.waitToEnterFlag.getAndSet(true);
-          }
-          // Peek the requests and check if our request is at the top of the queue
-          if(Server.requestQueue.peek() != null && Server.serverId == Server.requestQueue.peek().serverId)
+          if(responses.size() < replies.size())
           {
-              return;
+              return false;
           }
-          // else wait until out request gets to the top of the queue
-          try
-          {
-              // Wait until another thread notifies us to continue
-              waitToEnterFlag.wait();
-          }catch (InterruptedException e)
+          for (PeerMessage response: responses.values())
           {
-              e.printStackTrace();
-              System.err.println("Error waiting for self request to get to top of queue");
+              if(VERSION.equals(response.type) == false || response.version > version || Server.partitions.isAhead(response.versions))
+              {
+                  return false;
+              }
           }
+          this.confirmedAt = Math.max(this.confirmedAt, started);
+          return true;
       }
 
-      public String processMessage(String msg)
+      /**
+       * Message each of the peers, get their updated seat list
+       */
+      // Tell the peers we're up and catch up on the seats they have
+      public void handshakePeers() throws InterruptedException
       {
-          String[] tokens = msg.trim().split("\\s+");
-          String response = null;
-          if(tokens == null || tokens.length < 1)
+          PeerMessage handshakeMsg = PeerMessage.handshake(Server.serverId, Server.useBinaryCodec());
+          // Seats kept over a restart, the peers only send what changed since
+          handshakeMsg.version = dataVersion.get();
+          handshakeMsg.versions = Server.partitions.getVersions();
+          messagePeers(handshakeMsg);
+          // Watch for peers going down from now on
+          Server.startWorkerThread(new FailureDetector(this), "failure-detector", true);
+          if(this.escrow != null)
           {
-              return response;
+              this.escrow.sync();
           }
+      }
 
-          if (UPDATE.equals(tokens[0]))
-          {
-              // Received a update message to update the seat list
-              response = update(msg);
-          }
-          else if (REQUEST.equals(tokens[0]))
-          {
-              // Received a request to enter the CS from a peer
-              response = request(tokens);
-          }
-          else if (RELEASE.equals(tokens[0]))
+      // Send the message to the peers and process their replies. Returns the replies by peer.
+      // Changes to the seats are waited on as long as it takes like requests, the release that
+      // follows them must not reach a peer before they do
+      public Map<Peer,PeerMessage> messagePeers(PeerMessage msg) throws InterruptedException
+      {
+          long timeout = DELTA.equals(msg.type) || UPDATE.equals(msg.type) ? 0 : this.peerTimeout;
+          return processReplies(msg, this.messenger.sendToPeers(msg), timeout);
+      }
+
+      // Send a request for the CS until every peer not suspected to be down acknowledged it. A peer
+      // whose reply didn't come or wasn't an acknowledgement is asked again. peerTimeout doesn't
+      // apply, giving up on a slow peer would let two servers into the CS. Only the failure
+      // detector stops the wait on a peer
+      public void requestPeers(PeerMessage msg) throws InterruptedException
+      {
+          // With Ricart-Agrawala a peer that defers its reply acknowledges once it leaves the CS
+          RicartAgrawala ricartAgrawala = Server.partitions.ricartAgrawala != null ? Server.partitions.ricartAgrawala[msg.partition] : null;
+          Set<Peer> acknowledged = new HashSet<>();
+          Set<Peer> deferred = new HashSet<>();
+          boolean retry = false;
+          while(true)
           {
-              response = release(tokens);
+              for(Iterator<Peer> it = deferred.iterator(); it.hasNext();)
+              {
+                  Peer p = it.next();
+                  PeerMessage ack = ricartAgrawala.ack(p.id);
+                  if(ack != null)
+                  {
+                      acknowledged.add(p);
+                      processResponseFromPeer(p, msg, ack);
+                  }
+                  if(ack != null || p.suspected)
+                  {
+                      it.remove();
+                  }
+              }
+              Map<Peer,CompletableFuture<PeerMessage>> replies = new LinkedHashMap<>();
+              for(Peer p: this.messenger.otherPeers())
+              {
+                  if(p.suspected == false && acknowledged.contains(p) == false && deferred.contains(p) == false)
+                  {
+                      replies.put(p, null);
+                  }
+              }
+              if(replies.isEmpty())
+              {
+                  if(deferred.isEmpty())
+                  {
+                      return;
+                  }
+                  // Wake up now and then to see if a peer that deferred is suspected
+                  ricartAgrawala.awaitAck(REQUEST_RETRY_MILLIS);
+                  continue;
+              }
+              if(retry)
+              {
+                  // Give a peer that failed to answer time to come back or be suspected
+                  Thread.sleep(REQUEST_RETRY_MILLIS);
+              }
+              for(Peer p: replies.keySet())
+              {
+                  replies.put(p, this.messenger.send(p, msg));
+              }
+              Map<Peer,PeerMessage> responses = processReplies(msg, replies, 0);
+              // Peers that didn't answer at all are missing from the responses
+              retry = responses.size() < replies.size();
+              for(Map.Entry<Peer,PeerMessage> response: responses.entrySet())
+              {
+                  PeerMessage reply = response.getValue();
+                  if(ACKNOWLEDGE.equals(reply.type))
+                  {
+                      acknowledged.add(response.getKey());
+                  }
+                  else if(ricartAgrawala != null && PeerMessage.REPLY.equals(reply.type) && DEFERRED.equals(reply.text))
+                  {
+                      deferred.add(response.getKey());
+                  }
+                  else
+                  {
+                      retry = true;
+                  }
+              }
           }
-          else if (HANDSHAKE.equals(tokens[0]))
+      }
+
+      // Acknowledge the requests we deferred the reply to, asking again until each peer got it or
+      // is taken to be down
+      public void acknowledgeDeferred(int partition, List<Request> deferred) throws InterruptedException
+      {
+          Map<Peer,PeerMessage> acks = new LinkedHashMap<>();
+          for(Request r: deferred)
           {
-              // Received a handshake from a peer
-              response = handshake(tokens);
+              Peer p = getPeer(r.serverId);
+              if(p == null)
+              {
+                  continue;
+              }
+              PeerMessage ack = PeerMessage.acknowledge(dataVersion.get());
+              ack.serverId = Server.serverId;
+              ack.timestamp = r.logicalTimestamp;
+              ack.partition = partition;
+              acks.put(p, ack);
           }
-          else
+          boolean retry = false;
+          while(true)
           {
-
-              if(RESERVE.equals(tokens[0]))
+              acks.keySet().removeIf(p -> p.suspected);
+              if(acks.isEmpty())
               {
-                 // Send the request to enter the CS. Block until every peer has responded
-                 sendRequest();
-                 waitToEnter();
-                 response = reserve(tokens);
-                 // Update peers of the new seats
-                 updatePeers();
-                 // Send a release to the peers
-                 sendRelease();
+                  return;
               }
-              else if (BOOK_SEAT.equals(tokens[0]))
+              if(retry)
               {
-                  sendRequest();
-                  waitToEnter();
-                  response = bookSeat(tokens);
-                  updatePeers();
-                  sendRelease();
+                  Thread.sleep(REQUEST_RETRY_MILLIS);
               }
-              else if (SEARCH.equals(tokens[0]))
+              Map<Peer,CompletableFuture<PeerMessage>> replies = new LinkedHashMap<>();
+              for(Map.Entry<Peer,PeerMessage> ack: acks.entrySet())
               {
-                  sendRequest();
-                  waitToEnter();
-                  response = search(tokens);
-                  if(response == null)
-                  {
-                    String name = tokens[1];
-                    response = "No reservation found for " + name;
-                  }
-                  sendRelease();
+                  replies.put(ack.getKey(), this.messenger.send(ack.getKey(), ack.getValue()));
               }
-              else if (DELETE.equals(tokens[0]))
+              for(Peer p: this.messenger.awaitAll(replies, 0).keySet())
               {
-                  sendRequest();
-                  waitToEnter();
-                  response = delete(tokens);
-                  updatePeers();
-                  sendRelease();
+                  acks.remove(p);
               }
+              retry = true;
+          }
+      }
 
+      // Wait for the replies, at most timeoutMillis unless it's 0, and process them
+      private Map<Peer,PeerMessage> processReplies(PeerMessage msg, Map<Peer,CompletableFuture<PeerMessage>> replies, long timeoutMillis) throws InterruptedException
+      {
+          Map<Peer,PeerMessage> responses = this.messenger.awaitAll(replies, timeoutMillis);
+          for(Map.Entry<Peer,PeerMessage> response: responses.entrySet())
+          {
+              try
+              {
+                  processResponseFromPeer(response.getKey(), msg, response.getValue());
+              }catch (Exception e)
+              {
+                  e.printStackTrace();
+                  System.err.println("Unable to process response from peer");
+              }
           }
-            return response;
+          return responses;
       }
 
 
   }
 
-  private static class TcpClientWorkerThread extends ClientWorkerThread
+  private static class TcpServerThread extends ServerThread
   {
-      public TcpClientWorkerThread(ServerThread serverThread, Socket s)
+      public TcpServerThread(int port, SeatStore seats,List<Peer> peers)
       {
-          super(serverThread,s);
+          super(port,seats,peers);
       }
 
       public void run()
       {
+          this.isRunning.getAndSet(true);
+          // increment the logical clock when the thread starts
           logicalClock.getAndIncrement();
-          // Read the message from the client
+          ServerSocket tcpServerSocket = null;
           try
           {
-              //We have received a TCP socket from the client.  Receive message and reply.
-              BufferedReader inputReader = new BufferedReader(new InputStreamReader(s.getInputStream()));
-              boolean autoFlush = true;
-              PrintWriter outputWriter = new PrintWriter(s.getOutputStream(), autoFlush);
-              String inputLine = inputReader.readLine();
-              if (inputLine != null && inputLine.length() > 0) {
-                  String msg = inputLine;
-                  // Increment the logical clock everytime a client sends a message
-                  logicalClock.getAndIncrement();
-                  String response = processMessage(msg);
-                  // Increment the logical clock on response
-                  logicalClock.getAndIncrement();
-                  if(response != null)
+              tcpServerSocket = new ServerSocket(this.port);
+              // handshake with the peers as soon as we come up
+              handshakePeers();
+
+              while(this.isRunning.get() == true)
+              {
+                  Socket socket = null;
+                  try
+                  {
+                      // Open a new socket with clients
+                      socket = tcpServerSocket.accept();
+                      acceptedConnections.incrementAndGet();
+                      openConnections.incrementAndGet();
+                      // increment the logical clock everytime a new client connects
+                      logicalClock.getAndIncrement();
+                  }catch(Exception e)
+                  {
+                      System.err.println("Unable to accept new client connection");
+                      e.printStackTrace();
+                  }
+                  if(socket != null)
                   {
-                      outputWriter.write(response);
-                      outputWriter.flush();
+                      // Spawn off a new thread to process messages from this client
+                      ClientWorkerThread t = new TcpClientWorkerThread(this,socket);
+                      Server.startWorkerThread(t, null, true);
                   }
-                  outputWriter.close();
               }
+
           }catch (Exception e)
           {
-              System.err.println("Unable to receive message from client");
+              System.err.println("Unable to accept client connections");
               e.printStackTrace();
-          }finally
-          {
-              if(s != null)
+          }finally {
+              if (tcpServerSocket != null)
               {
                   try
                   {
-                      s.close();
+                      tcpServerSocket.close();
                   }catch (Exception e)
                   {
-                      System.err.println("Unable to close client socket");
+                      System.err.println("Unable to close tcp server socket");
+                      e.printStackTrace();
+                  }
+              }
+              if (tcpServerSocket != null)
+              {
+                  try
+                  {
+                      tcpServerSocket.close();
+                      this.isRunning.getAndSet(false);
+                  }catch (Exception e)
+                  {
+                      System.err.println("Unable to close tcp socket");
                       e.printStackTrace();
                   }
               }
-
           }
 
       }
 
+
   }
-  private static abstract class ServerThread implements Runnable
+
+  // Fixed size buffers for reading from connections. A connection only holds one while it has
+  // part of a message buffered, so idle connections cost no buffer
+  private static class BufferPool
   {
-      int port;
-      List<Seat> seats;
-      AtomicBoolean isRunning;
-      List<Peer> peers;
-      Lock threadLock;
+      int bufferSize;
+      int maxPooled;
+      ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+      AtomicInteger numPooled = new AtomicInteger(0);
 
-      public ServerThread(int port, List<Seat> seats,List<Peer> peers)
+      public BufferPool(int bufferSize, int maxPooled)
       {
-          this.port = port;
-          this.seats = seats;
-          this.peers = peers;
-          this.isRunning = new AtomicBoolean(false);
-          this.threadLock = new ReentrantLock();
+          this.bufferSize = bufferSize;
+          this.maxPooled = maxPooled;
       }
 
-      public void setSeats(int version, List<Seat> updatedList)
+      public ByteBuffer take()
       {
-          threadLock.lock();
-          this.seats = updatedList;
-          Server.dataVersion.set(version);
-          threadLock.unlock();
+          ByteBuffer b = this.buffers.poll();
+          if(b == null)
+          {
+              return ByteBuffer.allocateDirect(this.bufferSize);
+          }
+          this.numPooled.decrementAndGet();
+          return b;
       }
 
-      public List<Seat> getSeats()
+      public void give(ByteBuffer b)
       {
-          List<Seat> toReturn;
-          threadLock.lock();
-          toReturn = this.seats;
-          threadLock.unlock();
-          return toReturn;
+          // Buffers grown for a big message aren't pooled
+          if(b.capacity() != this.bufferSize || b.isDirect() == false)
+          {
+              return;
+          }
+          if(this.numPooled.incrementAndGet() > this.maxPooled)
+          {
+              this.numPooled.decrementAndGet();
+              return;
+          }
+          b.clear();
+          this.buffers.offer(b);
       }
+  }
 
-      public List<Peer> getPeers()
-      {
-          return this.peers;
-      }
+  // A connection served by NioServerThread. The first byte picks the protocol: a line of text from a
+  // client or a peer, a binary message from a peer, or framed messages over a long lived peer connection
+  private static class NioConnection
+  {
+      static final int UNKNOWN = 0;
+      static final int TEXT = 1;
+      static final int BINARY = 2;
+      static final int CHANNEL = 3;
+      static final int SESSION = 4;
 
-      public void stop()
+      SocketChannel channel;
+      SelectionKey key;
+      NioIoLoop loop;
+      int protocol = UNKNOWN;
+      ByteBuffer readBuffer;
+      // Replies waiting to be written, queued by the worker threads
+      ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+      volatile boolean closeAfterWrites = false;
+      // Commands of a client session waiting to run, and whether a worker is running them
+      ConcurrentLinkedQueue<byte[]> sessionCommands = new ConcurrentLinkedQueue<>();
+      AtomicBoolean sessionRunning = new AtomicBoolean(false);
+
+      public NioConnection(SocketChannel channel, NioIoLoop loop)
       {
-          isRunning.getAndSet(false);
+          this.channel = channel;
+          this.loop = loop;
       }
 
-      private void updateSeatList(int version, String msg)
+      // Queue a reply to write. Safe to call from any thread
+      public void send(ByteBuffer reply, boolean close)
       {
-          msg = msg.replace("{\"seats\":","");
-          msg = msg.replace("[","");
-          msg = msg.replace("]","");
-          String[] tokens = msg.split(",");
-          List<Seat> updatedSeats = new ArrayList();
-          for (int i = 0; i < tokens.length;i+=0)
+          if(reply.hasRemaining())
+          {
+              this.writes.add(reply);
+          }
+          if(close)
           {
-              String id = tokens[i];
-              i++;
-              String bookedBy = tokens[i];
-              i++;
-              String booked = tokens[i];
-              i++;
-              Seat s = Seat.fromString(id,bookedBy,booked);
-              updatedSeats.add(s);
+              this.closeAfterWrites = true;
           }
-          this.setSeats(version,updatedSeats);
+          this.loop.wantWrite(this);
       }
+  }
 
+  // A thread that reads and writes its share of the connections through a Selector
+  private static class NioIoLoop implements Runnable
+  {
+      NioServerThread server;
+      Selector selector;
+      ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+      ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
 
-      private void processResponseFromPeer(String msg)
+      public NioIoLoop(NioServerThread server) throws IOException
       {
-          if(msg == null)
-          {
-              return;
-          }
-          String[] tokens = msg.split("\\s+");
-          if(tokens == null || tokens.length < 1)
+          this.server = server;
+          this.selector = Selector.open();
+      }
+
+      public void add(SocketChannel channel)
+      {
+          this.newChannels.add(channel);
+          this.selector.wakeup();
+      }
+
+      public void wantWrite(NioConnection connection)
+      {
+          this.pendingWrites.add(connection);
+          this.selector.wakeup();
+      }
+
+      public void run()
+      {
+          while(this.server.isRunning.get())
           {
-              return;
+              try
+              {
+                  this.selector.select();
+                  SocketChannel channel;
+                  while((channel = this.newChannels.poll()) != null)
+                  {
+                      channel.configureBlocking(false);
+                      NioConnection connection = new NioConnection(channel, this);
+                      connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+                  }
+                  NioConnection pending;
+                  while((pending = this.pendingWrites.poll()) != null)
+                  {
+                      if(pending.key.isValid())
+                      {
+                          pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+                      }
+                  }
+                  Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                  while(keys.hasNext())
+                  {
+                      SelectionKey key = keys.next();
+                      keys.remove();
+                      NioConnection connection = (NioConnection) key.attachment();
+                      if(key.isValid() && key.isReadable())
+                      {
+                          this.server.read(connection);
+                      }
+                      if(key.isValid() && key.isWritable())
+                      {
+                          write(connection);
+                      }
+                  }
+              }catch(Exception e)
+              {
+                  System.err.println("Error in connection loop");
+                  e.printStackTrace();
+              }
           }
-          // received an ack to the request. Check if we need to update seats to newer version
-          if(ACKNOWLEDGE.equals(tokens[0]) || HANDSHAKE.equals(tokens[0]))
+      }
+
+      private void write(NioConnection connection)
+      {
+          try
           {
-              if(tokens.length < 3)
+              ByteBuffer reply;
+              while((reply = connection.writes.peek()) != null)
               {
-                  return;
+                  connection.channel.write(reply);
+                  if(reply.hasRemaining())
+                  {
+                      // The socket buffer is full, wait until it's writable again
+                      return;
+                  }
+                  connection.writes.poll();
               }
-              int version = Integer.parseInt(tokens[1]);
-              // A peer has a newer version, update to it
-              if(version > dataVersion.get())
+              if(connection.closeAfterWrites)
               {
-                  // update our seat list
-                  String seatsJson = tokens[2];
-                  updateSeatList(version, seatsJson);
+                  this.server.close(connection);
               }
-
+              else
+              {
+                  connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+              }
+          }catch(IOException e)
+          {
+              this.server.close(connection);
           }
+      }
+  }
+
+  // Processes a message read by NioServerThread and queues the reply on its connection
+  private static class NioClientWorkerThread extends ClientWorkerThread
+  {
+      NioConnection connection;
+      int protocol;
+      int requestId;
+      byte[] request;
 
+      public NioClientWorkerThread(ServerThread serverThread, NioConnection connection, int protocol, int requestId, byte[] request)
+      {
+          super(serverThread,null);
+          this.connection = connection;
+          this.protocol = protocol;
+          this.requestId = requestId;
+          this.request = request;
       }
-      /**
-       * Message each of the peers, get their updated seat list
-       */
-      public void messagePeers(String msg) throws InterruptedException
+
+      public void run()
       {
-          ExecutorService executor = Executors.newFixedThreadPool(5);
-          List<Callable<String>> workers = new ArrayList<>();
-          String self = Server.ipAddress + ":" + Server.port;
-          List<Peer> peers = this.getPeers();
-          for (Peer p:peers)
+          try
           {
-              // don't send a message to self
-            if(self.equals(p.toString()) == false)
-            {
-              Callable<String> worker = new MessagePeerThead(p, msg);
-              workers.add(worker);
-            }
+              if(this.protocol == NioConnection.SESSION)
+              {
+                  runSession();
+                  return;
+              }
+              if(this.protocol == NioConnection.CHANNEL)
+              {
+                  byte[] response = processFrame(this.request);
+                  ByteBuffer reply = ByteBuffer.allocate(8 + response.length);
+                  reply.putInt(this.requestId).putInt(response.length).put(response).flip();
+                  this.connection.send(reply, false);
+                  return;
+              }
+              logicalClock.getAndIncrement();
+              byte[] response = null;
+              if(this.protocol == NioConnection.BINARY)
+              {
+                  PeerMessage reply = processPeerMessage(BinaryCodec.read(new ByteArrayInputStream(this.request)));
+                  if(reply != null)
+                  {
+                      response = BinaryCodec.encode(reply);
+                  }
+              }
+              else
+              {
+                  String reply = processMessage(new String(this.request, StandardCharsets.UTF_8));
+                  if(reply != null)
+                  {
+                      response = reply.getBytes(StandardCharsets.UTF_8);
+                  }
+              }
+              logicalClock.getAndIncrement();
+              // One message per connection, close once the reply is out
+              this.connection.send(ByteBuffer.wrap(response != null ? response : new byte[0]), true);
+          }catch(Exception e)
+          {
+              System.err.println("Unable to process message");
+              e.printStackTrace();
+              this.connection.send(ByteBuffer.allocate(0), true);
           }
-          List<Future<String>> responses = executor.invokeAll(workers);
-          for(Future<String> futureResponse: responses)
+      }
+
+      // Run the queued commands of a client session in order. Only one worker runs them at a time
+      private void runSession() throws IOException
+      {
+          while(true)
           {
-              try
+              byte[] command;
+              while((command = this.connection.sessionCommands.poll()) != null)
               {
-                  String response = futureResponse.get();
-                  processResponseFromPeer(response);
-              }catch (Exception e)
+                  byte[] response = processFrame(command);
+                  ByteBuffer reply = ByteBuffer.allocate(4 + response.length);
+                  reply.putInt(response.length).put(response).flip();
+                  this.connection.send(reply, false);
+              }
+              this.connection.sessionRunning.set(false);
+              // A command may have been queued after the queue looked empty
+              if(this.connection.sessionCommands.isEmpty() || this.connection.sessionRunning.compareAndSet(false, true) == false)
               {
-                  e.printStackTrace();
-                  System.err.println("Unable to process response from peer");
+                  return;
               }
           }
       }
-
-
   }
 
-  private static class TcpServerThread extends ServerThread
+  // Accepts connections on a ServerSocketChannel and spreads them over a few I/O threads, so a
+  // connection only costs a thread while its message is processed. Client commands run on a bounded
+  // pool since they block waiting for the critical section, peer messages never wait on them
+  private static class NioServerThread extends ServerThread
   {
-      public TcpServerThread(int port, List<Seat> seats,List<Peer> peers)
+      NioIoLoop[] loops;
+      BufferPool bufferPool;
+      ExecutorService commandExecutor;
+
+      public NioServerThread(int port, SeatStore seats,List<Peer> peers)
       {
           super(port,seats,peers);
+          this.bufferPool = new BufferPool(8192, Server.getIntOption("pooledBuffers", 1024));
+          // With virtual threads every command gets its own thread, blocked commands cost little
+          this.commandExecutor = Server.newWorkerExecutor(() -> Executors.newFixedThreadPool(Server.getIntOption("workers", 64)));
       }
 
       public void run()
@@ -1102,68 +6925,245 @@ public class Server
           this.isRunning.getAndSet(true);
           // increment the logical clock when the thread starts
           logicalClock.getAndIncrement();
-          ServerSocket tcpServerSocket = null;
+          ServerSocketChannel serverChannel = null;
+          Selector acceptSelector = null;
           try
           {
-              tcpServerSocket = new ServerSocket(this.port);
+              serverChannel = ServerSocketChannel.open();
+              serverChannel.bind(new InetSocketAddress(this.port));
               // handshake with the peers as soon as we come up
-              String handshakeMsg = HANDSHAKE + " " + Server.serverId;
-              messagePeers(handshakeMsg);
+              handshakePeers();
 
+              this.loops = new NioIoLoop[Math.max(1, Server.getIntOption("ioThreads", 2))];
+              for(int i = 0; i < this.loops.length; i++)
+              {
+                  this.loops[i] = new NioIoLoop(this);
+                  Server.startWorkerThread(this.loops[i], "io-" + i, true);
+              }
+              acceptSelector = Selector.open();
+              serverChannel.configureBlocking(false);
+              serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+              int next = 0;
               while(this.isRunning.get() == true)
               {
-                  Socket socket = null;
-                  try
+                  acceptSelector.select();
+                  acceptSelector.selectedKeys().clear();
+                  SocketChannel channel;
+                  while((channel = serverChannel.accept()) != null)
                   {
-                      // Open a new socket with clients
-                      socket = tcpServerSocket.accept();
+                      acceptedConnections.incrementAndGet();
+                      openConnections.incrementAndGet();
                       // increment the logical clock everytime a new client connects
                       logicalClock.getAndIncrement();
-                  }catch(Exception e)
+                      this.loops[next].add(channel);
+                      next = (next + 1) % this.loops.length;
+                  }
+              }
+          }catch (Exception e)
+          {
+              System.err.println("Unable to accept client connections");
+              e.printStackTrace();
+          }finally
+          {
+              this.isRunning.getAndSet(false);
+              try
+              {
+                  if(acceptSelector != null)
                   {
-                      System.err.println("Unable to accept new client connection");
-                      e.printStackTrace();
+                      acceptSelector.close();
                   }
-                  if(socket != null)
+                  if(serverChannel != null)
                   {
-                      // Spawn off a new thread to process messages from this client
-                      ClientWorkerThread t = new TcpClientWorkerThread(this,socket);
-                      new Thread(t).start();
+                      serverChannel.close();
                   }
+              }catch (Exception e)
+              {
+                  System.err.println("Unable to close tcp server socket");
+                  e.printStackTrace();
               }
+          }
+      }
 
-          }catch (Exception e)
+      // Read what's available on the connection and hand every complete message to a worker.
+      // Called on the connection's I/O thread
+      public void read(NioConnection connection)
+      {
+          if(connection.readBuffer == null)
           {
-              System.err.println("Unable to accept client connections");
-              e.printStackTrace();
-          }finally {
-              if (tcpServerSocket != null)
+              connection.readBuffer = this.bufferPool.take();
+          }
+          int numRead;
+          try
+          {
+              numRead = connection.channel.read(connection.readBuffer);
+          }catch(IOException e)
+          {
+              close(connection);
+              return;
+          }
+          if(numRead < 0)
+          {
+              // The other side closed the connection
+              close(connection);
+              return;
+          }
+          ByteBuffer buffer = connection.readBuffer;
+          buffer.flip();
+          boolean done = parse(connection, buffer);
+          buffer.compact();
+          if(done || buffer.position() == 0)
+          {
+              this.bufferPool.give(buffer);
+              connection.readBuffer = null;
+          }
+          else if(buffer.hasRemaining() == false)
+          {
+              // The message doesn't fit, grow the buffer
+              ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+              buffer.flip();
+              bigger.put(buffer);
+              this.bufferPool.give(buffer);
+              connection.readBuffer = bigger;
+          }
+      }
+
+      // Dispatch the complete messages in the buffer. Returns true once a connection that carries
+      // a single message has read it
+      private boolean parse(NioConnection connection, ByteBuffer buffer)
+      {
+          while(buffer.hasRemaining())
+          {
+              if(connection.protocol == NioConnection.UNKNOWN)
               {
-                  try
+                  int firstByte = buffer.get(buffer.position()) & 0xFF;
+                  if(firstByte == PeerConnection.CHANNEL_MAGIC)
                   {
-                      tcpServerSocket.close();
-                  }catch (Exception e)
+                      connection.protocol = NioConnection.CHANNEL;
+                      buffer.get();
+                      continue;
+                  }
+                  if(firstByte == ClientWorkerThread.SESSION_MAGIC)
                   {
-                      System.err.println("Unable to close tcp server socket");
-                      e.printStackTrace();
+                      connection.protocol = NioConnection.SESSION;
+                      buffer.get();
+                      continue;
                   }
+                  connection.protocol = firstByte == BinaryCodec.MAGIC ? NioConnection.BINARY : NioConnection.TEXT;
               }
-              if (tcpServerSocket != null)
+              if(connection.protocol == NioConnection.TEXT)
               {
-                  try
+                  int end = -1;
+                  for(int i = buffer.position(); i < buffer.limit(); i++)
                   {
-                      tcpServerSocket.close();
-                      this.isRunning.getAndSet(false);
-                  }catch (Exception e)
+                      if(buffer.get(i) == '\n')
+                      {
+                          end = i;
+                          break;
+                      }
+                  }
+                  if(end < 0)
                   {
-                      System.err.println("Unable to close tcp socket");
-                      e.printStackTrace();
+                      return false;
+                  }
+                  byte[] line = new byte[end - buffer.position()];
+                  buffer.get(line);
+                  buffer.get();
+                  String msg = new String(line, StandardCharsets.UTF_8).trim();
+                  stopReading(connection);
+                  if(msg.isEmpty())
+                  {
+                      close(connection);
+                      return true;
                   }
+                  // Peer messages never wait behind client commands
+                  String type = msg.split("\\s+")[0];
+                  ExecutorService executor = PeerMessage.isPeerMessage(type) ? this.channelExecutor : this.commandExecutor;
+                  executor.execute(new NioClientWorkerThread(this, connection, NioConnection.TEXT, 0, msg.getBytes(StandardCharsets.UTF_8)));
+                  return true;
               }
+              if(connection.protocol == NioConnection.BINARY)
+              {
+                  // Magic byte, type code and the length of the payload
+                  if(buffer.remaining() < 6)
+                  {
+                      return false;
+                  }
+                  int length = buffer.getInt(buffer.position() + 2);
+                  if(buffer.remaining() < 6 + length)
+                  {
+                      return false;
+                  }
+                  byte[] frame = new byte[6 + length];
+                  buffer.get(frame);
+                  stopReading(connection);
+                  this.channelExecutor.execute(new NioClientWorkerThread(this, connection, NioConnection.BINARY, 0, frame));
+                  return true;
+              }
+              if(connection.protocol == NioConnection.SESSION)
+              {
+                  if(buffer.remaining() < 4)
+                  {
+                      return false;
+                  }
+                  int length = buffer.getInt(buffer.position());
+                  if(buffer.remaining() < 4 + length)
+                  {
+                      return false;
+                  }
+                  buffer.getInt();
+                  byte[] command = new byte[length];
+                  buffer.get(command);
+                  connection.sessionCommands.add(command);
+                  if(connection.sessionRunning.compareAndSet(false, true))
+                  {
+                      this.commandExecutor.execute(new NioClientWorkerThread(this, connection, NioConnection.SESSION, 0, null));
+                  }
+                  continue;
+              }
+              // Request id and length of the message
+              if(buffer.remaining() < 8)
+              {
+                  return false;
+              }
+              int length = buffer.getInt(buffer.position() + 4);
+              if(buffer.remaining() < 8 + length)
+              {
+                  return false;
+              }
+              int requestId = buffer.getInt();
+              buffer.getInt();
+              byte[] request = new byte[length];
+              buffer.get(request);
+              this.channelExecutor.execute(new NioClientWorkerThread(this, connection, NioConnection.CHANNEL, requestId, request));
           }
-
+          return false;
       }
 
+      private void stopReading(NioConnection connection)
+      {
+          connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+      }
 
+      public void close(NioConnection connection)
+      {
+          connection.key.cancel();
+          if(connection.channel.isOpen())
+          {
+              openConnections.decrementAndGet();
+          }
+          try
+          {
+              connection.channel.close();
+          }catch(IOException e)
+          {
+              System.err.println("Unable to close connection");
+              e.printStackTrace();
+          }
+          if(connection.readBuffer != null)
+          {
+              this.bufferPool.give(connection.readBuffer);
+              connection.readBuffer = null;
+          }
+      }
   }
 }
@@ -0,0 +1,85 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A round of the Lamport request queue as the message handlers run it: a server's request comes
+// in, the queue is checked for our own request and the release takes it out again. Each thread
+// plays one server, contended has them all on one queue
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestQueueBenchmark
+{
+    private static final MethodHandle NEW_QUEUE = ServerInternals.constructor("RequestQueue", int.class);
+    private static final MethodHandle NEW_REQUEST = ServerInternals.constructor("Request", int.class, int.class);
+    private static final MethodHandle ADD = ServerInternals.method("RequestQueue", "add", ServerInternals.nested("Request"));
+    private static final MethodHandle CHECK_FOR_SELF_REQUEST = ServerInternals.method("RequestQueue", "checkForSelfRequest");
+    private static final MethodHandle PEEK = ServerInternals.method("RequestQueue", "peek");
+    private static final MethodHandle REMOVE = ServerInternals.method("RequestQueue", "remove", ServerInternals.nested("Request"));
+
+    @State(Scope.Benchmark)
+    public static class Queue
+    {
+        Object queue;
+        AtomicInteger clock = new AtomicInteger();
+        AtomicInteger servers = new AtomicInteger();
+
+        @Setup
+        public void setUp() throws Throwable
+        {
+            this.queue = NEW_QUEUE.invoke(8);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Participant
+    {
+        int id;
+
+        @Setup
+        public void setUp(Queue q)
+        {
+            this.id = q.servers.incrementAndGet();
+        }
+    }
+
+    private static Object round(Queue q, Participant s) throws Throwable
+    {
+        Object request = (Object) NEW_REQUEST.invokeExact(s.id, q.clock.incrementAndGet());
+        ADD.invokeExact(q.queue, request);
+        CHECK_FOR_SELF_REQUEST.invokeExact(q.queue);
+        Object top = (Object) PEEK.invokeExact(q.queue);
+        REMOVE.invokeExact(q.queue, request);
+        return top;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object uncontended(Queue q, Participant s) throws Throwable
+    {
+        return round(q, s);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object contended(Queue q, Participant s) throws Throwable
+    {
+        return round(q, s);
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The seat store operations behind the client commands, on theaters of 1k to 10M seats with a
+// few or most of the seats booked at random. Every benchmark leaves the seats as it found them, so
+// reserve, bookSeat and delete each time the command and the command undoing it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class SeatStoreBenchmark
+{
+    private static final MethodHandle GET_SEATS = ServerInternals.method("", "getSeats", int.class);
+    private static final MethodHandle OBJECT_STORE = ServerInternals.constructor("ObjectSeatStore", List.class);
+    private static final MethodHandle COMPACT_STORE = ServerInternals.constructor("CompactSeatStore", int.class);
+    private static final MethodHandle BOOK = ServerInternals.method("SeatStore", "book", int.class, String.class);
+    private static final MethodHandle BOOK_FIRST_AVAILABLE = ServerInternals.method("SeatStore", "bookFirstAvailable", String.class);
+    private static final MethodHandle FIND_BY_NAME = ServerInternals.method("SeatStore", "findByName", String.class);
+    private static final MethodHandle FREE = ServerInternals.method("SeatStore", "free", String.class);
+
+    @Param({"object", "compact"})
+    String store;
+
+    @Param({"1000", "100000", "10000000"})
+    int seats;
+
+    // Share of the seats booked
+    @Param({"0.1", "0.9"})
+    double occupancy;
+
+    Object seatStore;
+    // The names holding a seat and the free seats, in random order
+    String[] names;
+    int[] freeSeats;
+    int next;
+    Random random = new Random(42);
+
+    @Setup
+    public void setUp() throws Throwable
+    {
+        if ("compact".equals(this.store))
+        {
+            this.seatStore = COMPACT_STORE.invoke(this.seats);
+        }
+        else
+        {
+            this.seatStore = OBJECT_STORE.invoke((List<?>) GET_SEATS.invoke(this.seats));
+        }
+        List<Integer> seatNums = new ArrayList<>(this.seats);
+        for (int i = 1; i <= this.seats; i++)
+        {
+            seatNums.add(i);
+        }
+        Collections.shuffle(seatNums, this.random);
+        int booked = (int) (this.seats * this.occupancy);
+        this.names = new String[booked];
+        for (int i = 0; i < booked; i++)
+        {
+            this.names[i] = "user" + i;
+            BOOK.invoke(this.seatStore, (int) seatNums.get(i), this.names[i]);
+        }
+        this.freeSeats = new int[this.seats - booked];
+        for (int i = booked; i < this.seats; i++)
+        {
+            this.freeSeats[i - booked] = seatNums.get(i);
+        }
+    }
+
+    private String bookedName()
+    {
+        return this.names[this.random.nextInt(this.names.length)];
+    }
+
+    @Benchmark
+    public int reserve() throws Throwable
+    {
+        int seat = (int) BOOK_FIRST_AVAILABLE.invokeExact(this.seatStore, "new");
+        return seat + (int) FREE.invokeExact(this.seatStore, "new");
+    }
+
+    @Benchmark
+    public int bookSeat() throws Throwable
+    {
+        int seat = this.freeSeats[this.random.nextInt(this.freeSeats.length)];
+        boolean booked = (boolean) BOOK.invokeExact(this.seatStore, seat, "new");
+        return (booked ? seat : 0) + (int) FREE.invokeExact(this.seatStore, "new");
+    }
+
+    @Benchmark
+    public int search() throws Throwable
+    {
+        return (int) FIND_BY_NAME.invokeExact(this.seatStore, bookedName());
+    }
+
+    @Benchmark
+    public int searchMissing() throws Throwable
+    {
+        return (int) FIND_BY_NAME.invokeExact(this.seatStore, "nobody");
+    }
+
+    @Benchmark
+    public boolean delete() throws Throwable
+    {
+        String name = bookedName();
+        int seat = (int) FREE.invokeExact(this.seatStore, name);
+        return (boolean) BOOK.invokeExact(this.seatStore, seat, name);
+    }
+}
@@ -0,0 +1,142 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding and decoding the seats sent between the servers: the full seat list of an update or a
+// handshake reply and a delta of the seats one group of commands changed, as json text and binary
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SerializationBenchmark
+{
+    private static final MethodHandle NEW_SEAT_STORE = ServerInternals.method("", "newSeatStore", int.class);
+    private static final MethodHandle PARTITIONS = ServerInternals.constructor("SeatPartitions", int.class, int.class, int.class, boolean.class);
+    private static final MethodHandle BOOK = ServerInternals.method("SeatStore", "book", int.class, String.class);
+    private static final MethodHandle WITH_SEATS = ServerInternals.method("PeerMessage", "withSeats", String.class, int.class, ServerInternals.nested("SeatStore"));
+    private static final MethodHandle DELTA = ServerInternals.method("PeerMessage", "delta", int.class, int.class, ServerInternals.nested("SeatStore"), List.class);
+    private static final MethodHandle GET_SEATS_AS_JSON = ServerInternals.method("PeerMessage", "getSeatsAsJson");
+    private static final MethodHandle TO_TEXT = ServerInternals.method("PeerMessage", "toText");
+    private static final MethodHandle FROM_TEXT = ServerInternals.method("PeerMessage", "fromText", String.class);
+    private static final MethodHandle TO_SEAT_STORE = ServerInternals.method("PeerMessage", "toSeatStore");
+    private static final MethodHandle ENCODE = ServerInternals.method("BinaryCodec", "encode", ServerInternals.nested("PeerMessage"));
+    private static final MethodHandle READ = ServerInternals.method("BinaryCodec", "read", java.io.InputStream.class);
+    // Seats changed by one group of commands
+    private static final int DELTA_SEATS = 64;
+
+    @Param({"1000", "100000", "1000000"})
+    int seats;
+
+    @Param({"0.1", "0.9"})
+    double occupancy;
+
+    Object update;
+    String updateText;
+    byte[] updateBytes;
+    Object delta;
+    String deltaText;
+    byte[] deltaBytes;
+
+    @Setup
+    public void setUp() throws Throwable
+    {
+        // Building a message reads the partition versions
+        ServerInternals.setStatic("partitions", PARTITIONS.invoke(1, this.seats, 2, false));
+        Object store = NEW_SEAT_STORE.invoke(this.seats);
+        Random random = new Random(42);
+        int booked = 0;
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 1; i <= this.seats; i++)
+        {
+            if (random.nextDouble() < this.occupancy)
+            {
+                BOOK.invoke(store, i, "user" + booked++);
+                if (changed.size() < DELTA_SEATS)
+                {
+                    changed.add(i);
+                }
+            }
+        }
+        this.update = WITH_SEATS.invoke("update", 1, store);
+        this.updateText = (String) TO_TEXT.invoke(this.update);
+        this.updateBytes = (byte[]) ENCODE.invoke(this.update);
+        this.delta = DELTA.invoke(0, 1, store, changed);
+        this.deltaText = (String) TO_TEXT.invoke(this.delta);
+        this.deltaBytes = (byte[]) ENCODE.invoke(this.delta);
+    }
+
+    @Benchmark
+    public String getSeatsAsJson() throws Throwable
+    {
+        return (String) GET_SEATS_AS_JSON.invokeExact(this.update);
+    }
+
+    @Benchmark
+    public Object decodeUpdateText() throws Throwable
+    {
+        return (Object) FROM_TEXT.invokeExact(this.updateText);
+    }
+
+    // Decoding the full seat list and building the seat store from it, what a server does with a
+    // full update from a peer
+    @Benchmark
+    public Object applyUpdateText() throws Throwable
+    {
+        return (Object) TO_SEAT_STORE.invokeExact((Object) FROM_TEXT.invokeExact(this.updateText));
+    }
+
+    @Benchmark
+    public byte[] encodeUpdateBinary() throws Throwable
+    {
+        return (byte[]) ENCODE.invokeExact(this.update);
+    }
+
+    @Benchmark
+    public Object decodeUpdateBinary() throws Throwable
+    {
+        return (Object) READ.invokeExact((java.io.InputStream) new ByteArrayInputStream(this.updateBytes));
+    }
+
+    @Benchmark
+    public String encodeDeltaText() throws Throwable
+    {
+        return (String) TO_TEXT.invokeExact(this.delta);
+    }
+
+    @Benchmark
+    public Object decodeDeltaText() throws Throwable
+    {
+        return (Object) FROM_TEXT.invokeExact(this.deltaText);
+    }
+
+    @Benchmark
+    public byte[] encodeDeltaBinary() throws Throwable
+    {
+        return (byte[]) ENCODE.invokeExact(this.delta);
+    }
+
+    @Benchmark
+    public Object decodeDeltaBinary() throws Throwable
+    {
+        return (Object) READ.invokeExact((java.io.InputStream) new ByteArrayInputStream(this.deltaBytes));
+    }
+}
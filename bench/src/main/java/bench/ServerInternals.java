@@ -0,0 +1,92 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+// The classes of the server are private and nested in Server, in the default package. The
+// benchmarks get at them through method handles typed with Object for the server's classes, so
+// the calls inline like direct ones once the handles are in static final fields
+final class ServerInternals
+{
+    private ServerInternals()
+    {
+    }
+
+    static Class<?> nested(String name)
+    {
+        try
+        {
+            return Class.forName(name.isEmpty() ? "Server" : "Server$" + name);
+        }catch(ClassNotFoundException e)
+        {
+            throw new IllegalStateException("Server is not on the class path", e);
+        }
+    }
+
+    // A handle to a method of one of the server's classes, with the server's classes erased to
+    // Object. An instance method takes the instance first
+    static MethodHandle method(String owner, String name, Class<?>... parameters)
+    {
+        try
+        {
+            Method m = nested(owner).getDeclaredMethod(name, parameters);
+            m.setAccessible(true);
+            return erase(MethodHandles.lookup().unreflect(m));
+        }catch(ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Server has no method " + owner + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(String owner, Class<?>... parameters)
+    {
+        try
+        {
+            Constructor<?> c = nested(owner).getDeclaredConstructor(parameters);
+            c.setAccessible(true);
+            return erase(MethodHandles.lookup().unreflectConstructor(c));
+        }catch(ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Server has no constructor for " + owner, e);
+        }
+    }
+
+    static void setStatic(String name, Object value)
+    {
+        try
+        {
+            Field f = nested("").getDeclaredField(name);
+            f.setAccessible(true);
+            f.set(null, value);
+        }catch(ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Server has no field " + name, e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle handle)
+    {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++)
+        {
+            if (isServerClass(type.parameterType(i)))
+            {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isServerClass(type.returnType()))
+        {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isServerClass(Class<?> c)
+    {
+        return c.getName().equals("Server") || c.getName().startsWith("Server$");
+    }
+}